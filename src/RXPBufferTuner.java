@@ -0,0 +1,119 @@
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+/**
+ * Sizes the kernel buffers of a socket so a burst isn't dropped before the socket is read
+ * Starts out big enough for a full window of segments and after every transfer grows towards twice the
+ * bandwidth-delay product that was measured, within the bounds the operator set
+ *
+ * The kernel may hand out less than was asked for (net.core.rmem_max and wmem_max on Linux),
+ * the stats then say so since drops on the local host otherwise only show up as retransmissions
+ */
+public class RXPBufferTuner {
+    private static final int PACKET_SIZE = 512;
+    private static final long DEFAULT_RTT = 10000000; // ns, assumed until this side has measured one
+    private static final int MIN_BUFFER = 64 * 1024;
+    private static final int MAX_BUFFER = 4 * 1024 * 1024;
+
+    private static int minBuffer = MIN_BUFFER;
+    private static int maxBuffer = MAX_BUFFER;
+
+    private final DatagramSocket socket;
+    private int requested = 0;
+    private int receiveBuffer = 0;
+    private int sendBuffer = 0;
+    private double receiveOverhead = 0, sendOverhead = 0; // what the kernel reports per byte asked for, Linux doubles it
+    private boolean clamped = false;
+
+    /**
+     * Sizes the buffers for a full window of segments right away
+     *
+     * @param socket
+     */
+    public RXPBufferTuner(DatagramSocket socket) {
+        this.socket = socket;
+        apply(Math.max(RXPReceiveWindow.DEFAULT_SIZE, RXPSendWindow.MAX_SIZE) * PACKET_SIZE);
+    }
+
+    /**
+     * Feeds a finished transfer into the estimate
+     *
+     * @param bytes bytes the transfer carried
+     * @param elapsed how long it took in ns
+     * @param rtt smoothed round trip time in ns, 0 if none was measured
+     */
+    public synchronized void onTransfer(long bytes, long elapsed, long rtt) {
+        if (bytes <= 0 || elapsed <= 0) {
+            return;
+        }
+        double rate = bytes * 1e9 / elapsed;
+        double bdp = rate * (rtt > 0 ? rtt : DEFAULT_RTT) / 1e9;
+        if (2 * bdp > requested) {
+            apply((int) Math.min(Integer.MAX_VALUE, 2 * bdp));
+        }
+    }
+
+    private synchronized void apply(int size) {
+        int target = Math.max(minBuffer, Math.min(maxBuffer, size));
+        if (target <= requested) {
+            return;
+        }
+        requested = target;
+        try {
+            socket.setReceiveBufferSize(target);
+            socket.setSendBufferSize(target);
+            receiveBuffer = socket.getReceiveBufferSize();
+            sendBuffer = socket.getSendBufferSize();
+        } catch (SocketException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (receiveOverhead == 0) {
+            // the first size is small enough that it shouldn't be clamped, it tells how the kernel reports sizes
+            receiveOverhead = Math.max(1, Math.min(2, receiveBuffer / (double) target));
+            sendOverhead = Math.max(1, Math.min(2, sendBuffer / (double) target));
+        }
+        if (receiveBuffer < target * receiveOverhead * 0.99 || sendBuffer < target * sendOverhead * 0.99) {
+            clamped = true;
+            System.out.printf("Kernel clamped the socket buffers to %d/%d KB (receive/send) of %d KB asked for\n",
+                    receiveBuffer / 1024, sendBuffer / 1024, target / 1024);
+        }
+    }
+
+    /**
+     * @return buffer sizes for the stats
+     */
+    public synchronized String describe() {
+        return String.format("socket buffers %d/%d KB%s", receiveBuffer / 1024, sendBuffer / 1024,
+                clamped ? " (clamped by the kernel)" : "");
+    }
+
+    /**
+     * @param min smallest buffer in bytes
+     * @param max largest buffer in bytes
+     */
+    public static void setBounds(int min, int max) {
+        minBuffer = Math.max(PACKET_SIZE, min);
+        maxBuffer = Math.max(minBuffer, max);
+    }
+
+    /**
+     * Takes the bounds from a command line option
+     *
+     * @param bounds MIN:MAX in KB
+     * @return false if they couldn't be read
+     */
+    public static boolean setBounds(String bounds) {
+        String[] split = bounds.split(":");
+        try {
+            if (split.length == 2) {
+                setBounds(Integer.parseInt(split[0]) * 1024, Integer.parseInt(split[1]) * 1024);
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            // falls through to the message
+        }
+        System.err.println("Socket buffer bounds must be given as minKB:maxKB");
+        return false;
+    }
+}
@@ -0,0 +1,87 @@
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Challenges handed out to clients that sent a SYN, keyed by their RXP port
+ * The table holds at most MAX_ENTRIES challenges and drops them after LIFETIME, oldest first,
+ * so a flood of SYNs from many ports can't grow the server's memory
+ */
+public class RXPChallengeTable {
+    private static final int MAX_ENTRIES = 1024;
+    private static final long LIFETIME = 30 * 1000; // covers the client resending its hash MAX_TRIES times
+
+    private final SecureRandom random = new SecureRandom();
+
+    // insertion order is also expiry order, since every entry lives for the same time
+    private final LinkedHashMap<Integer, Challenge> challenges = new LinkedHashMap<Integer, Challenge>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Challenge> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static class Challenge {
+        private final String value;
+        private final long expiry;
+
+        private Challenge(String value, long expiry) {
+            this.value = value;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * Returns the challenge for the port, creating one if it has none
+     * A retransmitted SYN gets the same challenge again so a hash computed from the first one still works
+     *
+     * @param port
+     * @return
+     */
+    public synchronized String challengeFor(int port) {
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        Challenge challenge = challenges.get(port);
+        if (challenge == null) {
+            challenge = new Challenge(randomHex(32), now + LIFETIME);
+            challenges.put(port, challenge);
+        }
+        return challenge.value;
+    }
+
+    /**
+     * Looks up the challenge that was sent to the port
+     *
+     * @param port
+     * @return the challenge, null if there is none or it has expired
+     */
+    public synchronized String find(int port) {
+        expire(System.currentTimeMillis());
+        Challenge challenge = challenges.get(port);
+        return challenge != null ? challenge.value : null;
+    }
+
+    /**
+     * Forgets the challenge once it has been answered, each challenge can only be used once
+     *
+     * @param port
+     */
+    public synchronized void remove(int port) {
+        challenges.remove(port);
+    }
+
+    private void expire(long now) {
+        Iterator<Challenge> it = challenges.values().iterator();
+        while (it.hasNext() && it.next().expiry <= now) {
+            it.remove();
+        }
+    }
+
+    private String randomHex(int numBytes) {
+        byte[] bytes = new byte[numBytes];
+        random.nextBytes(bytes);
+        return RXPHelpers.bytesToHex(bytes);
+    }
+}
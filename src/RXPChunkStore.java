@@ -0,0 +1,341 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content addressed store for uploads, so a chunk that is already on the server is neither sent nor stored again
+ * Files are cut into chunks where a rolling hash over the last bytes hits a pattern, so an edit only changes the
+ * chunks around it and the rest of a similar file still matches. Each chunk is kept once under its SHA-256
+ * in DIRECTORY, and the stored file is a manifest: MAGIC, the number of chunks, then the hash and length of each
+ *
+ * An upload takes three transfers, all ordinary ones:
+ * the client POSTs the manifest as NAME.rxprecipe, GETs NAME.rxpneed, a bitmap of the chunks the server is missing,
+ * and POSTs just those as NAME.rxpchunks, each the index of the chunk followed by its bytes. The server checks every
+ * chunk against its hash and once all of them are there the manifest is kept under the name the file is stored
+ * under plus MANIFEST_EXTENSION, so it is told apart from an upload by its name and never by its contents.
+ * A GET of the file sends what the manifest stands for, unless an ordinary upload of that name came since
+ *
+ * Chunks are not removed when the files using them are
+ */
+public class RXPChunkStore {
+    public static final String RECIPE_EXTENSION = ".rxprecipe";
+    public static final String NEED_EXTENSION = ".rxpneed";
+    public static final String CHUNKS_EXTENSION = ".rxpchunks";
+    public static final String MANIFEST_EXTENSION = ".rxpmanifest";
+    public static final String DIRECTORY = ".rxpchunks";
+    private static final int MAGIC = 0x52585043;
+    private static final int HASH_SIZE = 32;
+    private static final int MIN_CHUNK = 2 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024;
+    private static final int BOUNDARY_MASK = 0xFFF80000; // 13 bits, a boundary every 8 KB on average
+    private static final int[] GEAR = new int[256];
+
+    static {
+        Random random = new Random(MAGIC); // the same table on every side
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextInt();
+        }
+    }
+
+    private final File dir;
+
+    /**
+     * A manifest read back
+     */
+    private static class Recipe {
+        private final byte[][] hashes;
+        private final int[] lengths;
+
+        private Recipe(byte[][] hashes, int[] lengths) {
+            this.hashes = hashes;
+            this.lengths = lengths;
+        }
+
+        private static Recipe read(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(file.getName() + " is not a manifest");
+                }
+                int count = in.readInt();
+                // the count comes from an upload, it can't be more than the rest of the file holds
+                if (count < 0 || count > (file.length() - 8) / (HASH_SIZE + 4)) {
+                    throw new IOException(file.getName() + " is not a manifest");
+                }
+                byte[][] hashes = new byte[count][HASH_SIZE];
+                int[] lengths = new int[count];
+                for (int i = 0; i < count; i++) {
+                    in.readFully(hashes[i]);
+                    lengths[i] = in.readInt();
+                    if (lengths[i] < 0 || lengths[i] > MAX_CHUNK) {
+                        throw new IOException(file.getName() + " has a chunk of " + lengths[i] + " bytes");
+                    }
+                }
+                return new Recipe(hashes, lengths);
+            } catch (EOFException e) {
+                throw new IOException(file.getName() + " ends before its last chunk");
+            }
+        }
+    }
+
+    /**
+     * @param dir directory the chunks are kept in, created if needed
+     */
+    public RXPChunkStore(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+    /**
+     * Cuts a file into chunks
+     *
+     * @param file
+     * @return {offset, length} of each chunk
+     */
+    public static List<int[]> split(byte[] file) {
+        ArrayList<int[]> chunks = new ArrayList<>();
+        int start = 0;
+        int hash = 0;
+        for (int i = 0; i < file.length; i++) {
+            hash = (hash << 1) + GEAR[file[i] & 0xFF];
+            int length = i - start + 1;
+            if ((length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0) || length >= MAX_CHUNK) {
+                chunks.add(new int[]{start, length});
+                start = i + 1;
+                hash = 0;
+            }
+        }
+        if (start < file.length) {
+            chunks.add(new int[]{start, file.length - start});
+        }
+        return chunks;
+    }
+
+    /**
+     * @param file
+     * @param chunks from split
+     * @return the manifest of the file
+     */
+    public static byte[] recipe(byte[] file, List<int[]> chunks) {
+        ByteBuffer recipe = ByteBuffer.allocate(8 + chunks.size() * (HASH_SIZE + 4));
+        recipe.putInt(MAGIC).putInt(chunks.size());
+        for (int[] chunk : chunks) {
+            recipe.put(hash(file, chunk[0], chunk[1])).putInt(chunk[1]);
+        }
+        return recipe.array();
+    }
+
+    /**
+     * @param file
+     * @param chunks from split
+     * @param need bitmap the server sent back
+     * @return the chunks it asked for, each after its index
+     */
+    public static byte[] missing(byte[] file, List<int[]> chunks, byte[] need) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            if (isSet(need, i)) {
+                int[] chunk = chunks.get(i);
+                out.write(ByteBuffer.allocate(4).putInt(i).array(), 0, 4);
+                out.write(file, chunk[0], chunk[1]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param need bitmap from the server
+     * @return how many chunks it asked for
+     */
+    public static int needCount(byte[] need) {
+        int count = 0;
+        for (byte b : need) {
+            count += Integer.bitCount(b & 0xFF);
+        }
+        return count;
+    }
+
+    /**
+     * @param fileName name of an upload or a GET
+     * @return name of the file it belongs to, with the extension of the step taken off
+     */
+    public static String baseName(String fileName) {
+        return fileName.substring(0, fileName.lastIndexOf('.'));
+    }
+
+    /**
+     * Which chunks of a manifest that was uploaded have to be sent, a chunk that is in the file more than once
+     * only the first time
+     *
+     * @param recipeFile
+     * @return bitmap, bit i of byte i / 8 for chunk i
+     * @throws IOException if the manifest can't be read
+     */
+    public byte[] need(File recipeFile) throws IOException {
+        Recipe recipe = Recipe.read(recipeFile);
+        byte[] need = new byte[(recipe.hashes.length + 7) / 8];
+        HashSet<String> asked = new HashSet<>();
+        for (int i = 0; i < recipe.hashes.length; i++) {
+            String name = RXPHelpers.bytesToHex(recipe.hashes[i]);
+            if (!chunkFile(name).isFile() && asked.add(name)) {
+                need[i / 8] |= 1 << (i % 8);
+            }
+        }
+        System.out.printf("%s: %d of %d chunks are needed\n", recipeFile.getName(), needCount(need),
+                recipe.hashes.length);
+        return need;
+    }
+
+    /**
+     * Stores the chunks that came for a manifest and, once none are missing, keeps the manifest for the file
+     * in place of an earlier upload of it. Both uploads are removed either way
+     *
+     * @param recipeFile
+     * @param chunks
+     * @param target name the file is stored under
+     * @return whether the file is complete
+     */
+    public boolean store(File recipeFile, File chunks, File target) {
+        try {
+            Recipe recipe = Recipe.read(recipeFile);
+            int added = 0;
+            long addedBytes = 0, totalBytes = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(chunks)))) {
+                while (true) {
+                    int index;
+                    try {
+                        index = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (index < 0 || index >= recipe.hashes.length) {
+                        System.out.println("Chunk " + index + " is not in " + recipeFile.getName());
+                        return false;
+                    }
+                    byte[] data = new byte[recipe.lengths[index]];
+                    in.readFully(data);
+                    if (!Arrays.equals(hash(data, 0, data.length), recipe.hashes[index])) {
+                        System.out.println("Chunk " + index + " does not match its hash");
+                        return false;
+                    }
+                    File file = chunkFile(RXPHelpers.bytesToHex(recipe.hashes[index]));
+                    if (!file.isFile()) {
+                        file.getParentFile().mkdirs();
+                        File part = File.createTempFile(file.getName() + ".", ".part", file.getParentFile());
+                        Files.write(part.toPath(), data);
+                        if (!RXPStorageWriter.moveIntoPlace(part, file)) {
+                            part.delete();
+                            return false;
+                        }
+                        added++;
+                        addedBytes += data.length;
+                    }
+                }
+            }
+            int missing = 0;
+            for (int i = 0; i < recipe.hashes.length; i++) {
+                totalBytes += recipe.lengths[i];
+                if (!chunkFile(RXPHelpers.bytesToHex(recipe.hashes[i])).isFile()) {
+                    missing++;
+                }
+            }
+            if (missing > 0) {
+                System.out.printf("%d chunks of %s never came\n", missing, target.getName());
+                return false;
+            }
+            System.out.printf("Stored %s: %d new chunks, %d of its %d bytes\n", target.getName(), added, addedBytes,
+                    totalBytes);
+            if (!RXPStorageWriter.moveIntoPlace(recipeFile, new File(target.getPath() + MANIFEST_EXTENSION))) {
+                return false;
+            }
+            target.delete(); // an earlier upload of the file would hide the manifest
+            return true;
+        } catch (EOFException e) {
+            System.out.println(chunks.getName() + " ends inside a chunk");
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            chunks.delete();
+            recipeFile.delete();
+        }
+    }
+
+    /**
+     * @param fileName name a file is stored under
+     * @return the manifest kept for the file, null if there is none or an ordinary upload of the file came since
+     */
+    public File manifest(String fileName) {
+        File manifest = new File(fileName + MANIFEST_EXTENSION);
+        return manifest.isFile() && !new File(fileName).isFile() ? manifest : null;
+    }
+
+    /**
+     * The file a manifest stands for, each chunk opened as the read gets to it
+     *
+     * @param manifest
+     * @return
+     * @throws IOException if the manifest can't be read
+     */
+    public InputStream open(File manifest) throws IOException {
+        Recipe recipe = Recipe.read(manifest);
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < recipe.hashes.length;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                File chunk = chunkFile(RXPHelpers.bytesToHex(recipe.hashes[next++]));
+                try {
+                    return new FileInputStream(chunk);
+                } catch (IOException e) {
+                    // the read fails where the chunk should have been
+                    return new InputStream() {
+                        @Override
+                        public int read() throws IOException {
+                            throw new IOException("Chunk " + chunk.getName() + " is missing");
+                        }
+                    };
+                }
+            }
+        });
+    }
+
+    private File chunkFile(String name) {
+        return new File(new File(dir, name.substring(0, 2)), name);
+    }
+
+    private static boolean isSet(byte[] bitmap, int index) {
+        return index / 8 < bitmap.length && (bitmap[index / 8] & (1 << (index % 8))) != 0;
+    }
+
+    private static byte[] hash(byte[] data, int offset, int length) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(data, offset, length);
+            return sha.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every Java platform has SHA-256
+        }
+    }
+}
@@ -1,14 +1,38 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 public class RXPClient {
     private static final int PACKET_SIZE = 512;
     private static final int DATA_SIZE = 496;
     private static final int SEQ_NUM_MAX = 65536; //2^16, or max of 2 bytes
     private static final int MAX_TRIES = 5;
+    private static final int MAX_REPAIRS = 3;
+    private static final int SOCKET_TIMEOUT = 5000;
+    private static final int IDLE_POLL = 200; // how often the idle client checks for keep-alive probes
+    private static final int DRAIN_POLL = 2; // socket timeout while segments wait for the storage writer
+    private static final int NAK_DELAY = 200; // quiet time after which a distribution's receiver reports its gaps
+    private static final int MAX_QUIET_NAKS = 25;
+    private static final int MAX_NAK_RANGES = (DATA_SIZE - 4) / 8;
 
     private ClientState state;
 
@@ -22,9 +46,21 @@ public class RXPClient {
     private int seqNum = 0;
     private int ackNum = 0;
 
-    private byte[] fileData;
-    private ArrayList<byte[]> bytesReceived;
+    private RXPStorageWriter.Sink downloadSink;
+    private int segmentBase;
+    private RXPDigest receiveDigest;
+    private byte[] trailer;
+    private String uploadFileName;
+    private ArrayList<int[]> suspectRanges = new ArrayList<>();
+    private int peerWindow; // receive window the server advertised when it acknowledged the POST
     private boolean closeRequested = false;
+    private byte[] resumptionTicket;
+    private Thread keepAliveResponder;
+    private RXPPacer pacer = new RXPPacer();
+    private RXPBufferTuner bufferTuner;
+    private RXPProgressListener progress; // of the transfer running now, null if nobody listens
+    private long progressBytes;
+    private ExecutorService transfers; // runs the async transfers one after another, like the lock would
 
     public RXPClient(int clientPort, String serverIpAddress, int serverNetPort) {
         this.clientPort = clientPort;
@@ -43,19 +79,48 @@ public class RXPClient {
 
     /**
      * performs handshake
+     * With a resumption ticket the handshake is skipped, the ticket goes out with the first GET/POST instead
      *
      *@return success/failure
      */
-    public boolean setupRXP() {
+    public synchronized boolean setupRXP() {
+        closeRequested = false;
+        if (clientSocket != null) {
+            clientSocket.close(); // the socket of an earlier connection still holds the port
+        }
 
         try {
             clientSocket = new DatagramSocket(clientPort, clientIpAddress);
+            bufferTuner = new RXPBufferTuner(clientSocket);
             System.out.println("Set up socket");
         } catch (SocketException e) {
             System.out.println("Couldn't setup clientSocket");
             e.printStackTrace();
         }
 
+        try {
+            clientSocket.setSoTimeout(SOCKET_TIMEOUT);
+        } catch (SocketException e1) {
+            e1.printStackTrace();
+        }
+
+        if (resumptionTicket != null) {
+            System.out.println("Resuming session with ticket");
+            serverRXPPort = RXPTicket.serverPort(resumptionTicket);
+            state = ClientState.TICKET_SENT;
+        } else if (!handshake()) {
+            return false;
+        }
+        startKeepAliveResponder();
+        return true;
+    }
+
+    /**
+     * SYN, SYN+ACK with challenge, ACK with hash, ACK
+     *
+     *@return success/failure
+     */
+    private boolean handshake() {
         byte[] receiveSetupMessage = new byte[PACKET_SIZE];
         DatagramPacket receiveSetupPacket = new DatagramPacket(receiveSetupMessage, receiveSetupMessage.length);
 
@@ -74,19 +139,12 @@ public class RXPClient {
 
         // Sending SYN packet and receiving SYN ACK with challenge string
 
-        int timeout = 5000;
-        try {
-            clientSocket.setSoTimeout(timeout);
-        } catch (SocketException e1) {
-            e1.printStackTrace();
-        }
-
         int tries = 0;
         state = ClientState.SYN_SENT;
         while (state != ClientState.ESTABLISHED) {
             try {
                 clientSocket.send(setupPacket);
-                clientSocket.receive(receiveSetupPacket);
+                receive(receiveSetupPacket);
                 RXPHeader receiveHeader = RXPHelpers.getHeader(receiveSetupPacket);
                 if (!RXPHelpers.passChecksum(receiveSetupPacket)) {
                     System.out.println("Dropping invalid packet");
@@ -108,11 +166,23 @@ public class RXPClient {
                 return false;
             }
         }
+        return answerChallenge(receiveSetupPacket);
+    }
+
+    /**
+     * sends the hash of the challenge and waits for the ACK that establishes the connection
+     * The ACK carries a resumption ticket that is kept for the next connection
+     *
+     * @param challengePacket SYN+ACK from the server
+     * @return success/failure
+     */
+    private boolean answerChallenge(DatagramPacket challengePacket) {
+        DatagramPacket receiveSetupPacket = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
 
         // Setup hash Header
         RXPHeader hashHeader = RXPHelpers.initHeader(clientPort, serverRXPPort, seqNum, ackNum);
         hashHeader.setFlags(true, false, false, false, false, false); //setting ACK flag on
-        byte[] challenge = RXPHelpers.getData(receiveSetupPacket);
+        byte[] challenge = RXPHelpers.getData(challengePacket);
 
         //System.out.printf("Working with challenge:%s\n", RXPHelpers.byteArrToStr(challenge));
 
@@ -130,12 +200,12 @@ public class RXPClient {
 
 
         // Sending ACK packet with hash and receiving ACK for establishment
-        tries = 0;
+        int tries = 0;
         state = ClientState.HASH_SENT;
         while (state != ClientState.ESTABLISHED) {
             try {
                 clientSocket.send(hashPacket);
-                clientSocket.receive(receiveSetupPacket);
+                receive(receiveSetupPacket);
                 RXPHeader receiveHeader = RXPHelpers.getHeader(receiveSetupPacket);
                 if (!RXPHelpers.passChecksum(receiveSetupPacket)) {
                     System.out.println("Dropping corrupted packets");
@@ -147,6 +217,10 @@ public class RXPClient {
                     System.out.println("Established connection");
                     state = ClientState.ESTABLISHED;
                     serverRXPPort = receiveHeader.getSource();
+                    byte[] ticket = RXPHelpers.getData(receiveSetupPacket);
+                    if (ticket.length == RXPTicket.TICKET_LENGTH) {
+                        resumptionTicket = ticket;
+                    }
                     break;
                 }
             } catch (SocketTimeoutException s) {
@@ -168,21 +242,49 @@ public class RXPClient {
      * @param fileName of file client is going to send
      * @return success/failure
      */
-    public boolean sendFileNameUpload(String fileName) {
-        RXPHeader nameHeader = RXPHelpers.initHeader(clientPort, serverRXPPort, 0, 0);
-        nameHeader.setFlags(false, false, false, false, true, false); // POST.
-        byte[] sendData = fileName.getBytes(Charset.forName("UTF-8"));
-        nameHeader.setSegmentLength(sendData.length);
-        nameHeader.setChecksum(sendData);
+    public synchronized boolean sendFileNameUpload(String fileName) {
+        return sendFileNameUpload(fileName, -1);
+    }
+
+    /**
+     * @param fileName
+     * @param size length of the file, so the server can set aside room for it; -1 if not known yet
+     * @return success/failure
+     */
+    public synchronized boolean sendFileNameUpload(String fileName, long size) {
+        System.out.printf("Sending filename: %s", fileName);
+        uploadFileName = fileName;
+        if (size >= 0) {
+            return sendUploadRequest(RXPHelpers.makeSizedRequest(fileName, size));
+        }
+        return sendUploadRequest(fileName.getBytes(Charset.forName("UTF-8")));
+    }
+
+    /**
+     * sends the POST, either for a whole file or for a range of it, and waits for the server to acknowledge it
+     * @param sendData filename, optionally followed by a range
+     * @return success/failure
+     */
+    private boolean sendUploadRequest(byte[] sendData) {
+        return sendUploadRequest(false, sendData);
+    }
+
+    /**
+     * @param exchange whether the POST comes with a GET, see RXPExchange
+     */
+    private boolean sendUploadRequest(boolean exchange, byte[] sendData) {
+        if (state == ClientState.CLOSED) {
+            System.out.println("Not connected");
+            return false;
+        }
         // Make the packet
-        DatagramPacket namePacket = RXPHelpers.preparePacket(serverIpAddress, serverNetPort, nameHeader, sendData);
+        DatagramPacket namePacket = createRequestPacket(exchange, true, sendData);
         DatagramPacket receivedPacket = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
-        System.out.printf("Sending filename: %s", fileName);
         int tries = 0;
         while (true) {
             try {
                 clientSocket.send(namePacket);
-                clientSocket.receive(receivedPacket);
+                receive(receivedPacket);
 
                 RXPHeader headerResponse = RXPHelpers.getHeader(receivedPacket);
 
@@ -190,6 +292,11 @@ public class RXPClient {
                     System.out.println("Dropping corrupted packet");
                     continue;
                 }
+                if (isTicketRejected(headerResponse)) {
+                    if (!answerChallenge(receivedPacket)) return false;
+                    namePacket = createRequestPacket(exchange, true, sendData);
+                    continue;
+                }
                 if (!RXPHelpers.isValidPorts(receivedPacket, clientPort, serverRXPPort)) {
                     System.out.println("Dropping packet of incorrect ports");
                     continue;
@@ -200,7 +307,9 @@ public class RXPClient {
                 }
 
                 if (headerResponse.isACK() && headerResponse.isPOST() && !headerResponse.isFIN()) {
+                    peerWindow = headerResponse.getWindow();
                     //System.out.println("Server acknowledged the filename.");
+                    state = ClientState.ESTABLISHED;
                     break;
                 }
             } catch (SocketTimeoutException es) {
@@ -219,22 +328,234 @@ public class RXPClient {
     }
 
     /**
-     * starts and carries out upload transfer
+     * starts and carries out upload transfer, after sendFileNameUpload
+     * Ranges the server reports as failing the whole-file digest are sent again under a ranged POST
      */
-    public boolean upload(byte[] file) {
-        fileData = file;
-        int totalPackets = (fileData.length / DATA_SIZE);
-        if (fileData.length % DATA_SIZE > 0) totalPackets += 1; //1 extra packet if there's leftover data
+    public synchronized boolean upload(byte[] file) {
+        return upload(new RXPUploadSource(file));
+    }
+
+    /**
+     * POSTs many files at once as an RXPPack, the server stores each of them as if it had been sent on its own
+     *
+     * @param names names the server stores them under
+     * @param files their contents
+     * @return true if the server stored all of them
+     */
+    public synchronized boolean uploadPack(List<String> names, List<byte[]> files) {
+        String packName = "pack_" + clientPort + "_" + System.currentTimeMillis() + RXPPack.EXTENSION;
+        System.out.printf("Packing %d files into %s\n", names.size(), packName);
+        byte[] pack = RXPPack.pack(names, files);
+        return sendFileNameUpload(packName, pack.length) && upload(pack);
+    }
+
+    /**
+     * POSTs a file to a server that keeps an RXPChunkStore, sending only the chunks it doesn't have yet
+     * Falls back to sending the whole file when the server can't say which chunks it needs
+     *
+     * @param fileName
+     * @param file
+     * @return true if the server stored it
+     */
+    public synchronized boolean uploadDeduplicated(String fileName, byte[] file) {
+        List<int[]> chunks = RXPChunkStore.split(file);
+        byte[] recipe = RXPChunkStore.recipe(file, chunks);
+        if (!sendFileNameUpload(fileName + RXPChunkStore.RECIPE_EXTENSION, recipe.length) || !upload(recipe)) {
+            return false;
+        }
+        ByteArrayOutputStream need = new ByteArrayOutputStream();
+        if (!download(fileName + RXPChunkStore.NEED_EXTENSION, need)) {
+            System.out.println("Server doesn't deduplicate, sending the whole file");
+            return sendFileNameUpload(fileName, file.length) && upload(file);
+        }
+        byte[] missing = RXPChunkStore.missing(file, chunks, need.toByteArray());
+        System.out.printf("Sending %d of %d chunks, %d of %d bytes\n", RXPChunkStore.needCount(need.toByteArray()),
+                chunks.size(), missing.length, file.length);
+        return sendFileNameUpload(fileName + RXPChunkStore.CHUNKS_EXTENSION, missing.length) && upload(missing);
+    }
+
+    /**
+     * POSTs a directory and everything below it as an RXPTree, read as it is sent
+     * The server stores it as the directory downloaded_NAME; like any stream the tree can't be sent again
+     * if the server's digest check fails
+     *
+     * @param dir
+     * @return true if the server stored the whole tree
+     */
+    public synchronized boolean uploadTree(Path dir) {
+        try {
+            return upload(dir.getFileName() + RXPTree.EXTENSION, RXPTree.stream(dir));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * POSTs a file read off a stream of unknown length, the stream is read to its end but not closed
+     * Only the segments in flight are held in memory, so the file can't be sent again if the server's digest check fails
+     *
+     * @param fileName name the server stores it under
+     * @param in
+     * @return success/failure
+     */
+    public synchronized boolean upload(String fileName, InputStream in) {
+        return sendFileNameUpload(fileName) && upload(new RXPUploadSource(in));
+    }
+
+    /**
+     * POSTs a file taken from a publisher, which is asked for more as the send window frees up
+     * The subscription is cancelled if the upload fails before the publisher completes
+     *
+     * @param fileName name the server stores it under
+     * @param publisher
+     * @return success/failure
+     */
+    public synchronized boolean upload(String fileName, Flow.Publisher<ByteBuffer> publisher) {
+        RXPSubscriberStream in = new RXPSubscriberStream();
+        publisher.subscribe(in);
+        return upload(fileName, in);
+    }
+
+    private boolean upload(String fileName, RXPSubscriberStream in) {
+        boolean success = upload(fileName, (InputStream) in);
+        in.close();
+        return success;
+    }
+
+    private boolean upload(RXPUploadSource source) {
+        progressBytes = 0;
+        boolean success = repairUpload(source, sendSegments(source, 0, Integer.MAX_VALUE));
+        if (closeRequested) serverDisconnect();
+        return success;
+    }
+
+    /**
+     * sends the ranges in suspectRanges again until the server accepts the file
+     * @param source the file
+     * @param success whether the file got across in the first place
+     * @return success/failure
+     */
+    private boolean repairUpload(RXPUploadSource source, boolean success) {
+        int repairs = 0;
+        while (success && !suspectRanges.isEmpty() && !closeRequested) {
+            if (!source.canRepair()) {
+                System.out.println("Server could not verify the file and a stream can't be sent again");
+                success = false;
+                break;
+            }
+            if (repairs++ >= MAX_REPAIRS) {
+                System.out.println("Server could not verify the file");
+                success = false;
+                break;
+            }
+            for (int[] range : new ArrayList<>(suspectRanges)) {
+                System.out.printf("Resending segments %d to %d\n", range[0], range[0] + range[1] - 1);
+                success = sendUploadRequest(RXPHelpers.makeRangeRequest(uploadFileName, range[0], range[1]))
+                        && sendSegments(source, range[0], range[1]);
+                if (!success) break;
+            }
+        }
+        if (success) {
+            reportProgress(source.getLength(), source.getLength());
+        }
+        return success;
+    }
+
+    /**
+     * GETs one file while POSTing another over the same session, see RXPExchange
+     * The downloaded file is stored as downloaded_downloadName, ranges that fail either digest check
+     * are fetched or sent again afterwards
+     *
+     * @param downloadName file to GET
+     * @param uploadName name the server stores the upload under
+     * @param upload contents of the file to POST
+     * @return true if both files got across intact
+     */
+    public synchronized boolean exchange(String downloadName, String uploadName, byte[] upload) {
+        downloadSink = RXPStorageWriter.open(downloadName);
+        if (downloadSink == null) {
+            return false;
+        }
+        RXPUploadSource source = new RXPUploadSource(upload);
+        uploadFileName = uploadName;
+        progressBytes = 0;
+        suspectRanges = new ArrayList<>();
+
+        boolean success = sendUploadRequest(true, RXPHelpers.makeExchangeRequest(downloadName, uploadName));
+        if (success) {
+            RXPExchange exchange = new RXPExchange(new RXPExchange.Endpoint() {
+                @Override
+                public void send(DatagramPacket packet, boolean data) throws IOException {
+                    clientSocket.send(packet);
+                }
+
+                @Override
+                public void receive(DatagramPacket packet, int timeout) throws IOException {
+                    clientSocket.setSoTimeout(timeout);
+                    RXPClient.this.receive(packet);
+                }
+            }, serverIpAddress, serverNetPort, clientPort, serverRXPPort, pacer, bufferTuner, source, downloadSink,
+                    peerWindow);
+            success = exchange.run();
+            closeRequested |= exchange.isCloseRequested();
+            receiveDigest = exchange.getReceiveDigest();
+            trailer = exchange.getReceiveTrailer();
+            suspectRanges = exchange.getSendSuspects();
+            try {
+                clientSocket.setSoTimeout(SOCKET_TIMEOUT);
+            } catch (SocketException e) {
+                e.printStackTrace();
+            }
+        }
+        boolean uploaded = success && repairUpload(source, true);
+        boolean downloaded = repairDownload(downloadName, success);
+        seqNum = 0;
+        ackNum = 0;
+        if (closeRequested) serverDisconnect();
+        return uploaded && downloaded;
+    }
+
+    /**
+     * sends segments start to start + count - 1 of the file followed by the trailer
+     * @param source the file
+     * @param start first segment
+     * @param count number of segments, cut short where the file ends
+     * @return success/failure
+     */
+    private boolean sendSegments(RXPUploadSource source, int start, int count) {
+        int totalPackets = Integer.MAX_VALUE; // until the source knows where the file ends, the trailer goes last
 
-        int currPacket = 0;
-        DatagramPacket sendingPacket;
         DatagramPacket receivePacket = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+        suspectRanges = new ArrayList<>();
+
+        // up to a window of segments in flight, the server's cumulative ACKs slide it along
+        RXPSendWindow window = new RXPSendWindow(totalPackets, RXPSendWindow.MAX_SIZE, peerWindow);
+        int acksReceived = 0;
+        pacer.restart();
+        long startTime = System.nanoTime();
 
-        while (currPacket < totalPackets) {
-            sendingPacket = createDataPacket(currPacket);
+        while (!window.isComplete()) {
+            long paceWait = 0;
             try {
-                clientSocket.send(sendingPacket);
-                clientSocket.receive(receivePacket);
+                while (window.canSend()) {
+                    // rather than sleep until the pacer lets the next segment go, read ACKs in the meantime
+                    paceWait = pacer.delay(PACKET_SIZE);
+                    if (paceWait > 0) {
+                        break;
+                    }
+                    DatagramPacket packet = createTransferPacket(source, start, count, window.getNext());
+                    if (totalPackets == Integer.MAX_VALUE && source.getTotal() >= 0) {
+                        totalPackets = Math.min(count, source.getTotal() - start) + 1;
+                        window.setTotal(totalPackets);
+                    }
+                    pacer.onSend(packet.getLength());
+                    window.nextToSend();
+                    clientSocket.send(packet);
+                }
+
+                clientSocket.setSoTimeout(paceWait > 0 ? (int) Math.max(1, paceWait / 1000000) : SOCKET_TIMEOUT);
+                receive(receivePacket);
                 RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
 
                 if (!RXPHelpers.passChecksum(receivePacket)) {
@@ -249,100 +570,325 @@ public class RXPClient {
                     closeRequested = true;
                     continue;
                 }
+                if (!receiveHeader.isACK() || receiveHeader.isPOST()) {
+                    continue;   // late ACK of the POST
+                }
+                acksReceived++;
 
-                if (receiveHeader.isACK() && receiveHeader.isLAST()) {
+                if (receiveHeader.isLAST()) {
+                    suspectRanges = RXPHelpers.decodeRanges(RXPHelpers.getData(receivePacket));
                     System.out.println("Finished Uploading!");
                     break;
                 }
-
-                if (seqNum == receiveHeader.getAckNum()) { //getting ack for previous packet
-                    continue;
+                int acked = window.onAck(receiveHeader.getAckNum(), receiveHeader.getWindow());
+                if (acked > 0) {
+                    pacer.onAck(acked * DATA_SIZE, window.getRttSample());
+                    source.release(start + window.getBase());
+                    if (start == 0) {
+                        reportProgress(Math.min((long) window.getBase() * DATA_SIZE, source.getLength()),
+                                source.getTotal() >= 0 ? source.getLength() : -1);
+                    }
                 }
-                if (seqNum + 1 == receiveHeader.getAckNum()) {  //got the ack for this packet
-                    seqNum = (seqNum + 1) % SEQ_NUM_MAX;
-                    ackNum = receiveHeader.getSeqNum();
-                    currPacket++;
+                if (window.fastRetransmit()) {
+                    resendPaced(window, createTransferPacket(source, start, count, window.getBase()), window.getBase());
                 }
             } catch (SocketTimeoutException s) {
+                if (paceWait > 0) {
+                    continue;   // only waited for the pacer
+                }
                 System.out.println("Timeout, resending..");
+                window.onTimeout();
+                try {
+                    for (int packetNum = window.getBase(); packetNum < window.getNext(); packetNum++) {
+                        resendPaced(window, createTransferPacket(source, start, count, packetNum), packetNum);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
             } catch (IOException e) {
                 e.printStackTrace();
                 return false;
             }
         }
-        fileData = null;
+        try {
+            clientSocket.setSoTimeout(SOCKET_TIMEOUT);
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        bufferTuner.onTransfer((long) totalPackets * DATA_SIZE, System.nanoTime() - startTime, pacer.getSmoothedRtt());
+        System.out.printf("Sent %d segments, %d ACKs came back, %d fast retransmits, paced at %d KB/s, RTT %.2f ms, %s\n",
+                totalPackets, acksReceived, window.getFastRetransmits(), pacer.getRate() / 1024, pacer.getSmoothedRtt() / 1e6,
+                bufferTuner.describe());
         seqNum = 0;
         ackNum = 0;
-        if (closeRequested) serverDisconnect();
         return true;
     }
 
+    /**
+     * sends a segment that is already in flight again, it waits for the pacer like any other
+     */
+    private void resendPaced(RXPSendWindow window, DatagramPacket packet, int packetNum) throws IOException {
+        window.onResent(packetNum);
+        pacer.pace(packet.getLength());
+        clientSocket.send(packet);
+    }
+
+    /**
+     * packet number packetNum of a transfer of count segments starting at segment start, the trailer comes after them
+     */
+    private DatagramPacket createTransferPacket(RXPUploadSource source, int start, int count, int packetNum)
+            throws IOException {
+        byte[] data = packetNum < count ? source.segment(start + packetNum) : null;
+        if (data != null) {
+            return createDataPacket(data, RXPSendWindow.seqOf(packetNum));
+        }
+        return createTrailerPacket(source.getTrailer(), RXPSendWindow.seqOf(packetNum));
+    }
+
     /**
     * creates packets of indexed bytes of file
      */
-    private DatagramPacket createDataPacket(int initByteIndex) {
-        System.out.printf("Creating data packet # %d \n", initByteIndex);
+    private DatagramPacket createDataPacket(byte[] data, int packetSeqNum) {
         // Setup header for the data packet
-        int byteLocation = initByteIndex * DATA_SIZE;
-        int bytesRemaining = fileData.length - byteLocation;
-
-        RXPHeader header = RXPHelpers.initHeader(clientPort, serverRXPPort, seqNum, (ackNum + 1) % SEQ_NUM_MAX);
+        RXPHeader header = RXPHelpers.initHeader(clientPort, serverRXPPort, packetSeqNum, (ackNum + 1) % SEQ_NUM_MAX);
 
-        int data_length;
-        if (bytesRemaining <= DATA_SIZE) { //utilized for last segment of data
-            data_length = bytesRemaining;
-            header.setFlags(false, false, false, false, false, true); // LAST flag
-            //System.out.println("Creating LAST packet");
-        } else {
-            data_length = DATA_SIZE;
-        }
-        header.setSegmentLength(data_length);
-        byte[] data = new byte[data_length];
-        System.arraycopy(fileData, initByteIndex * DATA_SIZE, data, 0, data_length);
+        header.setSegmentLength(data.length);
         header.setChecksum(data);
 
         // Make the packet
         return RXPHelpers.preparePacket(serverIpAddress, serverNetPort, header, data);
     }
 
+    /**
+     * creates the LAST packet carrying the digest trailer of the file
+     */
+    private DatagramPacket createTrailerPacket(byte[] fileTrailer, int packetSeqNum) {
+        //System.out.println("Creating LAST packet");
+        RXPHeader header = RXPHelpers.initHeader(clientPort, serverRXPPort, packetSeqNum, (ackNum + 1) % SEQ_NUM_MAX);
+        header.setFlags(false, false, false, false, false, true); // LAST flag
+        header.setSegmentLength(fileTrailer.length);
+        header.setChecksum(fileTrailer);
+        return RXPHelpers.preparePacket(serverIpAddress, serverNetPort, header, fileTrailer);
+    }
+
     /**
      * request download of specified filename and carry out download
      * GET
+     * The file is checked against the digest trailer and only the failing ranges are fetched again
+     */
+    public synchronized boolean download(String fileName) {
+        return download(fileName, RXPStorageWriter.open(fileName));
+    }
+
+    /**
+     * GETs a directory on the server and everything below it, stored as the directory downloaded_dirName
+     * The tree is received into a file first, so ranges that fail the digest check can be fetched again
+     *
+     * @param dirName
+     * @return success/failure
+     */
+    public synchronized boolean downloadTree(String dirName) {
+        String treeName = dirName + RXPTree.EXTENSION;
+        return download(dirName, RXPStorageWriter.open(treeName))
+                && RXPTree.unpack(new File(RXPStorageWriter.storedName(treeName)),
+                        Paths.get(RXPStorageWriter.storedName(dirName))) >= 0;
+    }
+
+    /**
+     * GETs a file into a channel of the caller's, which is left open
+     * The bytes are written as they come in, so a file that fails the digest check can't be repaired
+     * and what was already written stays written
+     *
+     * @param fileName
+     * @param out
+     * @return success/failure
      */
-    public boolean download(String fileName) {
+    public synchronized boolean download(String fileName, WritableByteChannel out) {
+        return download(fileName, RXPStorageWriter.open(out));
+    }
+
+    /**
+     * GETs a file into a stream of the caller's, which is flushed at the end but left open
+     *
+     * @param fileName
+     * @param out
+     * @return success/failure
+     */
+    public synchronized boolean download(String fileName, OutputStream out) {
+        return download(fileName, RXPStorageWriter.open(out));
+    }
+
+    /**
+     * GETs a file as a publisher of its segments, in order; the download starts on the client's transfer thread
+     * once a subscriber comes along, and only one may
+     * Segments are taken out of the receive window only as the subscriber asks for them, so its demand sets the
+     * window the server sees. It completes once the whole file has passed the digest check and gets an error
+     * if it didn't, the segments it already got can't be taken back
+     *
+     * @param fileName
+     * @return
+     */
+    public Flow.Publisher<ByteBuffer> downloadPublisher(String fileName) {
+        AtomicBoolean subscribed = new AtomicBoolean();
+        return subscriber -> {
+            SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>();
+            publisher.subscribe(subscriber);
+            if (!subscribed.compareAndSet(false, true)) {
+                publisher.closeExceptionally(new IllegalStateException("A download only has one subscriber"));
+                return;
+            }
+            submit(() -> download(fileName, RXPStorageWriter.open(publisher)), null);
+        };
+    }
+
+    private boolean download(String fileName, RXPStorageWriter.Sink sink) {
+        downloadSink = sink;
+        if (downloadSink == null) {
+            return false;
+        }
+        progressBytes = 0;
+        receiveDigest = new RXPDigest();
+        boolean resultOfAssemble = repairDownload(fileName, fetchSegments(fileName.getBytes(), 0));
+        if (closeRequested) serverDisconnect();
+        return resultOfAssemble;
+    }
+
+    /**
+     * fetches the ranges that fail the check against the trailer again, then stores the file or drops it
+     * @param fileName
+     * @param success whether the file got across in the first place
+     * @return true if the file was stored
+     */
+    private boolean repairDownload(String fileName, boolean success) {
+        int repairs = 0;
+        while (success && !closeRequested) {
+            ArrayList<int[]> suspects = receiveDigest.findSuspectRanges(trailer);
+            if (suspects.isEmpty()) {
+                break;
+            }
+            if (!downloadSink.canRepair() || repairs++ >= MAX_REPAIRS) {
+                System.out.println("File failed the integrity check");
+                success = false;
+                break;
+            }
+            for (int[] suspect : suspects) {
+                for (int[] range : narrowDown(fileName, suspect)) {
+                    System.out.printf("Re-fetching segments %d to %d\n", range[0], range[0] + range[1] - 1);
+                    success = fetchSegments(RXPHelpers.makeRangeRequest(fileName, range[0], range[1]), range[0]);
+                    if (!success) break;
+                }
+                if (!success) break;
+            }
+            // the blocks that came again were hashed again as they came, the rest of the digest still holds
+        }
+
+        boolean resultOfAssemble = false;
+        if (success) {
+            resultOfAssemble = downloadSink.finish(RXPDigest.trailerSegmentCount(trailer));
+        } else {
+            downloadSink.abort();
+        }
+        if (resultOfAssemble) {
+            reportProgress(progressBytes, progressBytes);
+        }
+        trailer = null;
+        receiveDigest = null;
+        downloadSink = null;
+        return resultOfAssemble;
+    }
+
+    /**
+     * asks the server for the hashes of the blocks in a range that failed the check, so that only the blocks
+     * that differ are fetched again
+     * @param fileName
+     * @param range {start, count} of segments, whole nodes of the tree in the trailer
+     * @return the ranges to fetch again, the whole range if it is a single block or the hashes can't be had
+     */
+    private List<int[]> narrowDown(String fileName, int[] range) {
+        int firstLeaf = range[0] / RXPDigest.BLOCK_SEGMENTS;
+        int leaves = (range[1] + RXPDigest.BLOCK_SEGMENTS - 1) / RXPDigest.BLOCK_SEGMENTS;
+        if (leaves <= 1) {
+            return Collections.singletonList(range);
+        }
+        // a GET of its own, the download it is for is put aside meanwhile
+        RXPStorageWriter.Sink sink = downloadSink;
+        RXPDigest digest = receiveDigest;
+        byte[] fileTrailer = trailer;
+        ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+        downloadSink = RXPStorageWriter.open(hashes);
+        receiveDigest = new RXPDigest();
+        boolean fetched = fetchSegments(RXPHelpers.makeRangeRequest(fileName + RXPDigest.LEAVES_EXTENSION,
+                firstLeaf, leaves), 0) && downloadSink.finish(-1);
+        downloadSink = sink;
+        receiveDigest = digest;
+        trailer = fileTrailer;
+
+        ArrayList<int[]> blocks = fetched ? digest.findSuspectBlocks(trailer, firstLeaf, hashes.toByteArray()) : null;
+        if (blocks == null) {
+            System.out.println("Could not get the block hashes, fetching the whole range");
+            return Collections.singletonList(range);
+        }
+        int differ = 0;
+        for (int[] block : blocks) {
+            differ += (block[1] + RXPDigest.BLOCK_SEGMENTS - 1) / RXPDigest.BLOCK_SEGMENTS;
+        }
+        System.out.printf("%d of %d blocks in segments %d to %d differ\n", differ, leaves, range[0],
+                range[0] + range[1] - 1);
+        return blocks;
+    }
+
+    /**
+     * sends the GET and receives the segments of the file into the download sink, starting at the given segment
+     * @param request filename, optionally followed by a range
+     * @param base index of the first segment that will be received
+     * @return success/failure
+     */
+    private boolean fetchSegments(byte[] request, int base) {
+        if (state == ClientState.CLOSED) {
+            System.out.println("Not connected");
+            return false;
+        }
         //Send GET packet with filename
         byte[] receiveMessage = new byte[PACKET_SIZE];
         DatagramPacket receivePacket = new DatagramPacket(receiveMessage, receiveMessage.length);
         RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
 
-        // Setup Initializing Header
-
-        RXPHeader requestHeader = RXPHelpers.initHeader(clientPort, serverRXPPort, seqNum, ackNum);
-        requestHeader.setFlags(false, false, false, true, false, false); // GET
-        requestHeader.setSegmentLength(fileName.getBytes().length);
-        byte[] data = fileName.getBytes();
-        requestHeader.setChecksum(data);
-
         // Make the packet
-        DatagramPacket requestPacket = RXPHelpers.preparePacket(serverIpAddress, serverNetPort, requestHeader, data);
+        DatagramPacket requestPacket = createRequestPacket(true, false, request);
 
+        RXPReceiveWindow window = new RXPReceiveWindow(RXPReceiveWindow.DEFAULT_SIZE);
         int currPacket = 0;
         int tries = 0;
         boolean finDL = false;
-        bytesReceived = new ArrayList<>();
+        segmentBase = base;
+        try {
+            clientSocket.send(requestPacket);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
         while (true) {
             try {
-                System.out.println("Sending: " + seqNum + ", " + ackNum);
-
-                clientSocket.send(requestPacket);
-
-                clientSocket.receive(receivePacket);
+                long ackDelay = window.ackDelay();
+                if (window.hasReady()) {
+                    clientSocket.setSoTimeout(DRAIN_POLL);
+                } else {
+                    clientSocket.setSoTimeout(ackDelay >= 0 ? (int) Math.max(1, ackDelay) : SOCKET_TIMEOUT);
+                }
+                receive(receivePacket);
                 receiveHeader = RXPHelpers.getHeader(receivePacket);
 
                 if (!RXPHelpers.passChecksum(receivePacket)) {
                     System.out.println("Dropping corrupted packet");
                     continue;
                 }
+                if (isTicketRejected(receiveHeader)) {
+                    if (!answerChallenge(receivePacket)) return false;
+                    requestPacket = createRequestPacket(true, false, request);
+                    clientSocket.send(requestPacket);
+                    continue;
+                }
                 if (!RXPHelpers.isValidPorts(receivePacket, clientPort, serverRXPPort)) {
                     System.out.println("Dropping packet of incorrect ports");
                     continue;
@@ -354,36 +900,58 @@ public class RXPClient {
                 if (receiveHeader.isFIN() && closeRequested) {
                     break;
                 }
-//				System.out.print(currPacket + " " + seqNum + " ---- " + ackNum + " \n");
-
-                //System.out.println("Receiving: " + receiveHeader.getSeqNum() + ", " + receiveHeader.getAckNum());
-                //System.out.println("Global: " + seqNum + ", " + ackNum);
 
-//                boolean isLast = receiveHeader.isLAST();
                 // Assuming valid and acked
                 if (receiveHeader.isACK()) {
                     System.out.println("Is ACK, Skip");
                     continue; //got ack packet for some reason, this isn't our desired data
                 }
 
-                if (ackNum == receiveHeader.getSeqNum()) {
-                    //System.out.println("Right packet");
-                    requestPacket = receiveDataPacket(receivePacket, currPacket);
-                    currPacket++;
+                state = ClientState.ESTABLISHED;
+                boolean ackNow = window.accept(receiveHeader.getSeqNum(), RXPHelpers.getData(receivePacket),
+                        receiveHeader.isLAST());
+                currPacket = drainWindow(window, currPacket);
+                if (downloadSink.isCancelled()) {
+                    System.out.println("The subscriber cancelled, calling off the download");
+                    cancelDownload(window);
+                    return false;
                 }
-
-                if (receiveHeader.isLAST()) {
-                    finDL = true;
+                if (ackNow || window.windowUpdateDue() || window.isComplete() != finDL) {
+                    requestPacket = createAckPacket(window);
+                    clientSocket.send(requestPacket);
                 }
+                finDL = window.isComplete();
             } catch (SocketTimeoutException s) {
-                // Once we send the last packet, we wait for it to timeout. If we receive another LAST, then the LASTACK we sent was lost
-                if (finDL) {
-                    break;
-                }
-
-                System.out.println("Timeout, resending..");
-                if (tries++ >= 5) {
-                    System.out.println("Download could not be started");
+                try {
+                    if (window.hasReady()) {
+                        // only waited for the storage writer to catch up
+                        currPacket = drainWindow(window, currPacket);
+                        if (window.ackDelay() == 0 || window.windowUpdateDue() || window.isComplete() != finDL) {
+                            requestPacket = createAckPacket(window);
+                            clientSocket.send(requestPacket);
+                        }
+                        finDL = window.isComplete();
+                        continue;
+                    }
+                    if (window.ackDelay() >= 0) {
+                        // delayed ACK is due
+                        requestPacket = createAckPacket(window);
+                        clientSocket.send(requestPacket);
+                        continue;
+                    }
+                    // Once we send the last packet, we wait for it to timeout. If we receive another LAST, then the LASTACK we sent was lost
+                    if (finDL) {
+                        break;
+                    }
+
+                    System.out.println("Timeout, resending..");
+                    if (tries++ >= 5) {
+                        System.out.println("Download could not be started");
+                        return false;
+                    }
+                    clientSocket.send(requestPacket);
+                } catch (IOException e) {
+                    e.printStackTrace();
                     return false;
                 }
             } catch (IOException e) {
@@ -391,46 +959,522 @@ public class RXPClient {
                 return false;
             }
         }
-        System.out.println("Finished downloading");
-        boolean resultOfAssemble = RXPHelpers.combineBytesToFile(bytesReceived, fileName);
-        fileData = null;
+        try {
+            clientSocket.setSoTimeout(SOCKET_TIMEOUT);
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        bufferTuner.onTransfer((long) window.getSegmentsReceived() * DATA_SIZE, window.getElapsed(), pacer.getSmoothedRtt());
+        System.out.printf("Finished downloading, %d segments came in and %d ACKs went out, %s\n",
+                window.getSegmentsReceived(), window.getAcksSent(), bufferTuner.describe());
+        seqNum = 0;
+        ackNum = 0;
+        return true;
+    }
+
+    /**
+     * Ends a GET early with the LAST ACK that normally ends it, sent again for as long as segments keep coming
+     * so the server stops sending even if one is lost; the session stays open for the next request
+     */
+    private void cancelDownload(RXPReceiveWindow window) throws IOException {
+        RXPHeader ackHeader = RXPHelpers.initHeader(clientPort, serverRXPPort, seqNum, window.ackNumber());
+        ackHeader.setFlags(true, false, false, false, false, true); // ACK LAST
+        byte[] dataArray = new byte[0];
+        ackHeader.setChecksum(dataArray);
+        ackHeader.setSegmentLength(dataArray.length);
+        DatagramPacket lastAck = RXPHelpers.preparePacket(serverIpAddress, serverNetPort, ackHeader, dataArray);
+        DatagramPacket receivePacket = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+
+        clientSocket.setSoTimeout(SOCKET_TIMEOUT);
+        clientSocket.send(lastAck);
+        try {
+            while (true) {
+                receive(receivePacket);
+                RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
+                if (!RXPHelpers.passChecksum(receivePacket)) {
+                    continue;
+                }
+                if (receiveHeader.isFIN()) {    //server wants to terminate
+                    closeRequested = true;
+                    break;
+                }
+                if (!receiveHeader.isACK()) {
+                    clientSocket.send(lastAck); // a segment still in flight, or the LAST ACK got lost
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the server stopped sending
+        }
+        seqNum = 0;
+        ackNum = 0;
+    }
+
+    /**
+     * Joins the distribution of a file, which the server sends to every client that asks for it around the same
+     * time at once, see RXPDistributor
+     * Segments come in any order and are written where they belong; whenever nothing came for a while, or the
+     * trailer came with gaps before it, the server is told which ranges are missing. Once every segment is there
+     * the file is checked against the trailer and the ranges that fail are asked for the same way
+     *
+     * @param fileName
+     * @return success/failure
+     */
+    public synchronized boolean join(String fileName) {
+        downloadSink = RXPStorageWriter.open(fileName);
+        if (downloadSink == null) {
+            return false;
+        }
+        progressBytes = 0;
+        boolean success = receiveDistribution(fileName);
+        if (success) {
+            success = downloadSink.finish(RXPDigest.trailerSegmentCount(trailer));
+        } else {
+            downloadSink.abort();
+        }
+        if (success) {
+            reportProgress(progressBytes, progressBytes);
+        }
+        trailer = null;
+        downloadSink = null;
         seqNum = 0;
         ackNum = 0;
-        bytesReceived = new ArrayList<byte[]>();
         if (closeRequested) serverDisconnect();
-        return resultOfAssemble;
+        return success;
     }
 
     /**
-     * take received packets into byte array collection and prepare ack packet
+     * sends the join and receives the distribution into the download sink until the file passes the digest check
+     * @param fileName
+     * @return success/failure
      */
-    private DatagramPacket receiveDataPacket(DatagramPacket receivePacket, int nextPacketNum) {
-        RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
+    private boolean receiveDistribution(String fileName) {
+        if (state == ClientState.CLOSED) {
+            System.out.println("Not connected");
+            return false;
+        }
+        byte[] receiveMessage = new byte[PACKET_SIZE];
+        DatagramPacket receivePacket = new DatagramPacket(receiveMessage, receiveMessage.length);
+        DatagramPacket requestPacket = createRequestPacket(true, false, true, fileName.getBytes());
 
-        // extracts and adds data to ArrayList of byte[]s
-        byte[] data = RXPHelpers.getData(receivePacket);
-        bytesReceived.add(data);
+        BitSet received = new BitSet();
+        RXPDigest digest = new RXPDigest(); // kept across repairs, so only the blocks sent again are hashed again
+        int total = -1; // data segments in the file, known once the trailer is in
+        int receivedCount = 0; // bits set in received, so finding out whether the file is complete is quick
+        boolean verified = false;
+        int tries = 0;
+        int quietNaks = 0;
+        int segmentsReceived = 0, naksSent = 0;
+        try {
+            clientSocket.send(requestPacket);
+            while (true) {
+                // gaps are only reported once segments are coming, before that the join may still be gathering
+                clientSocket.setSoTimeout(segmentsReceived > 0 ? NAK_DELAY : SOCKET_TIMEOUT);
+                try {
+                    receive(receivePacket);
+                } catch (SocketTimeoutException s) {
+                    if (verified) {
+                        // the server never confirmed it heard we are done, it drops us once we stay quiet
+                        if (tries++ >= MAX_TRIES) break;
+                        clientSocket.send(createReportPacket(total, new ArrayList<>()));
+                    } else if (segmentsReceived == 0) {
+                        System.out.println("Timeout, resending..");
+                        if (tries++ >= MAX_TRIES) {
+                            System.out.println("Could not join the distribution");
+                            return false;
+                        }
+                        clientSocket.send(requestPacket);
+                    } else {
+                        if (quietNaks++ >= MAX_QUIET_NAKS) {
+                            System.out.println("The server stopped sending");
+                            return false;
+                        }
+                        clientSocket.send(createReportPacket(total, missingRanges(received, total)));
+                        naksSent++;
+                    }
+                    continue;
+                }
+                RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
 
-        ackNum = (receiveHeader.getSeqNum() + 1) % SEQ_NUM_MAX;
-        seqNum = receiveHeader.getAckNum();
+                if (!RXPHelpers.passChecksum(receivePacket)) {
+                    System.out.println("Dropping corrupted packet");
+                    continue;
+                }
+                if (isTicketRejected(receiveHeader)) {
+                    if (!answerChallenge(receivePacket)) return false;
+                    requestPacket = createRequestPacket(true, false, true, fileName.getBytes());
+                    clientSocket.send(requestPacket);
+                    continue;
+                }
+                if (!RXPHelpers.isValidPorts(receivePacket, clientPort, serverRXPPort)) {
+                    System.out.println("Dropping packet of incorrect ports");
+                    continue;
+                }
+                if (receiveHeader.isFIN()) {    //server wants to terminate
+                    closeRequested = true;
+                    return verified;
+                }
+                if (receiveHeader.isACK()) {
+                    if (receiveHeader.isGET() && receiveHeader.isLAST()) {
+                        state = ClientState.ESTABLISHED;
+                        if (verified && RXPHelpers.getData(receivePacket).length > 0) {
+                            break;  // the server knows we have the file
+                        }
+                    }
+                    continue;
+                }
+                if (verified) {
+                    continue;   // a repair that was already under way
+                }
+
+                int index = receiveHeader.getSeqNum() | receiveHeader.getAckNum() << 16;
+                if (index < 0 || (total >= 0 && index >= total && !receiveHeader.isLAST())) {
+                    System.out.println("Dropping segment " + index + ", it is not in the file");
+                    continue;
+                }
+                state = ClientState.ESTABLISHED;
+                quietNaks = 0;
+                byte[] data = RXPHelpers.getData(receivePacket);
+                segmentsReceived++;
+                if (receiveHeader.isLAST()) {
+                    if (trailer == null) {
+                        trailer = data;
+                        total = index;
+                        if (received.length() > total) {
+                            received.clear(total, received.length()); // came before the file's end was known
+                            receivedCount = received.cardinality();
+                        }
+                        ArrayList<int[]> missing = missingRanges(received, total);
+                        if (!missing.isEmpty()) {
+                            clientSocket.send(createReportPacket(total, missing));
+                            naksSent++;
+                        }
+                    }
+                } else if (!received.get(index)) {
+                    received.set(index);
+                    receivedCount++;
+                    downloadSink.write(index, data);
+                    digest.update(index, data);
+                    reportProgress(progressBytes + data.length, -1);
+                }
+
+                if (total >= 0 && receivedCount == total) {
+                    ArrayList<int[]> suspects = digest.findSuspectRanges(trailer);
+                    if (suspects.isEmpty()) {
+                        verified = true;
+                        tries = 0;
+                    } else {
+                        System.out.println("File failed the integrity check, asking for the ranges again");
+                        for (int[] range : suspects) {
+                            received.clear(range[0], range[0] + range[1]);
+                            receivedCount -= range[1]; // all of the file was in
+                        }
+                        if (suspects.size() > MAX_NAK_RANGES) {
+                            suspects = new ArrayList<>(suspects.subList(0, MAX_NAK_RANGES)); // the rest go next time
+                        }
+                    }
+                    clientSocket.send(createReportPacket(total, suspects));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                clientSocket.setSoTimeout(SOCKET_TIMEOUT);
+            } catch (SocketException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.printf("Finished joining, %d segments came in and %d reports of missing ranges went out\n",
+                segmentsReceived, naksSent);
+        return true;
+    }
+
+    /**
+     * ranges of the file not received yet; while the trailer is missing the last one runs to the end, count -1
+     */
+    private ArrayList<int[]> missingRanges(BitSet received, int total) {
+        ArrayList<int[]> ranges = new ArrayList<>();
+        int end = total >= 0 ? total : received.length();
+        int start = received.nextClearBit(0);
+        while (start < end && ranges.size() < MAX_NAK_RANGES) {
+            int stop = Math.min(end, received.nextSetBit(start) < 0 ? end : received.nextSetBit(start));
+            ranges.add(new int[]{start, stop - start});
+            start = received.nextClearBit(stop);
+        }
+        if (total < 0 && ranges.size() < MAX_NAK_RANGES) {
+            ranges.add(new int[]{end, -1});
+        }
+        return ranges;
+    }
+
+    /**
+     * LAST ACK of a distribution: the ranges to send again, none once the file is complete
+     */
+    private DatagramPacket createReportPacket(int total, ArrayList<int[]> ranges) {
         RXPHeader ackHeader = RXPHelpers.initHeader(clientPort, serverRXPPort, seqNum, ackNum);
+        ackHeader.setFlags(true, false, false, false, false, true); // ACK LAST
+        byte[] dataArray = RXPHelpers.encodeRanges(total, ranges);
+        ackHeader.setSegmentLength(dataArray.length);
+        ackHeader.setChecksum(dataArray);
+        return RXPHelpers.preparePacket(serverIpAddress, serverNetPort, ackHeader, dataArray);
+    }
+
+    /**
+     * creates the GET/POST packet
+     * While resuming, the packet is also a SYN and the resumption ticket goes in front of the request
+     *
+     * @param get whether it is a GET
+     * @param post whether it is a POST, both for an exchange
+     * @param request filename, optionally followed by a range
+     */
+    private DatagramPacket createRequestPacket(boolean get, boolean post, byte[] request) {
+        return createRequestPacket(get, post, false, request);
+    }
+
+    /**
+     * @param last set on a GET that joins a distribution
+     */
+    private DatagramPacket createRequestPacket(boolean get, boolean post, boolean last, byte[] request) {
+        boolean resuming = state == ClientState.TICKET_SENT;
+        RXPHeader requestHeader = RXPHelpers.initHeader(clientPort, serverRXPPort, seqNum, ackNum);
+        requestHeader.setFlags(false, resuming, false, get, post, last);
+        requestHeader.setWindow(RXPReceiveWindow.DEFAULT_SIZE); // for a GET, how much the server may send before our first ACK
+
+        byte[] data = request;
+        if (resuming) {
+            data = new byte[resumptionTicket.length + request.length];
+            System.arraycopy(resumptionTicket, 0, data, 0, resumptionTicket.length);
+            System.arraycopy(request, 0, data, resumptionTicket.length, request.length);
+        }
+        requestHeader.setSegmentLength(data.length);
+        requestHeader.setChecksum(data);
+
+        return RXPHelpers.preparePacket(serverIpAddress, serverNetPort, requestHeader, data);
+    }
+
+    /**
+     * The server answers a SYN carrying a ticket it won't accept with a challenge, so the full handshake takes over
+     */
+    private boolean isTicketRejected(RXPHeader receiveHeader) {
+        if (state != ClientState.TICKET_SENT || !receiveHeader.isSYN() || !receiveHeader.isACK()) {
+            return false;
+        }
+        System.out.println("Resumption ticket rejected, falling back to handshake");
+        resumptionTicket = null;
+        return true;
+    }
+
+    /**
+     * move in-order segments out of the window while the storage writer has room, the trailer is kept for the check
+     */
+    private int drainWindow(RXPReceiveWindow window, int currPacket) {
+        byte[] data;
+        while (downloadSink.hasRoom() && (data = window.poll()) != null) {
+            if (window.isComplete()) {
+                trailer = data;
+            } else {
+                storeSegment(data, currPacket);
+            }
+            currPacket++;
+        }
+        return currPacket;
+    }
+
+    /**
+     * hand an in-order segment to the storage writer
+     */
+    private void storeSegment(byte[] data, int nextPacketNum) {
+        int segmentIndex = segmentBase + nextPacketNum;
+        downloadSink.write(segmentIndex, data);
+        receiveDigest.update(segmentIndex, data);
+        if (segmentBase == 0) {
+            reportProgress(progressBytes + data.length, -1);    // the size comes with the trailer
+        }
+    }
+
+    private void reportProgress(long bytes, long total) {
+        progressBytes = bytes;
+        if (progress != null) {
+            progress.onProgress(bytes, total);
+        }
+    }
+
+    /**
+     * GETs a file into a stream of the caller's on the client's transfer thread
+     * Transfers started this way run one after another, in the order they were started
+     *
+     * @param fileName
+     * @param out flushed at the end but left open
+     * @param progress called on the transfer thread as the file comes in, may be null
+     * @return completes with whether the file came through intact
+     */
+    public CompletableFuture<Boolean> downloadAsync(String fileName, OutputStream out, RXPProgressListener progress) {
+        return submit(() -> download(fileName, out), progress);
+    }
 
-        if (receiveHeader.isLAST()) {
+    /**
+     * GETs a file into a channel of the caller's on the client's transfer thread
+     *
+     * @param fileName
+     * @param out left open
+     * @param progress called on the transfer thread as the file comes in, may be null
+     * @return completes with whether the file came through intact
+     */
+    public CompletableFuture<Boolean> downloadAsync(String fileName, WritableByteChannel out,
+                                                    RXPProgressListener progress) {
+        return submit(() -> download(fileName, out), progress);
+    }
+
+    /**
+     * POSTs a file read off a stream on the client's transfer thread
+     *
+     * @param fileName name the server stores it under
+     * @param in read to its end but not closed
+     * @param progress called on the transfer thread as the server acknowledges the file, may be null
+     * @return completes with whether the server stored the file
+     */
+    public CompletableFuture<Boolean> uploadAsync(String fileName, InputStream in, RXPProgressListener progress) {
+        return submit(() -> upload(fileName, in), progress);
+    }
+
+    /**
+     * POSTs a file taken from a publisher on the client's transfer thread
+     * It is subscribed to right away, so what it publishes while earlier transfers run waits for this one
+     *
+     * @param fileName name the server stores it under
+     * @param publisher
+     * @param progress called on the transfer thread as the server acknowledges the file, may be null
+     * @return completes with whether the server stored the file
+     */
+    public CompletableFuture<Boolean> uploadAsync(String fileName, Flow.Publisher<ByteBuffer> publisher,
+                                                  RXPProgressListener progress) {
+        RXPSubscriberStream in = new RXPSubscriberStream();
+        publisher.subscribe(in);
+        return submit(() -> upload(fileName, in), progress);
+    }
+
+    private synchronized CompletableFuture<Boolean> submit(Supplier<Boolean> transfer,
+                                                        RXPProgressListener listener) {
+        if (transfers == null) {
+            transfers = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rxp-transfer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            synchronized (this) {
+                progress = listener;
+                try {
+                    return transfer.get();
+                } finally {
+                    progress = null;
+                }
+            }
+        }, transfers);
+    }
+
+    /**
+     * prepare the cumulative ack, just a header
+     */
+    private DatagramPacket createAckPacket(RXPReceiveWindow window) {
+        RXPHeader ackHeader = RXPHelpers.initHeader(clientPort, serverRXPPort, seqNum, window.ackNumber());
+        ackHeader.setWindow(window.advertisedWindow());
+
+        if (window.isComplete()) {
             ackHeader.setFlags(true, false, false, false, false, true); // ACK LAST
         } else {
             ackHeader.setFlags(true, false, false, false, false, false);    // ACK
         }
 
-        byte[] dataArray = ByteBuffer.allocate(4).putInt(nextPacketNum).array();
+        byte[] dataArray = new byte[0];
         ackHeader.setChecksum(dataArray);
         ackHeader.setSegmentLength(dataArray.length);
+        window.onAckSent();
         return RXPHelpers.preparePacket(serverIpAddress, serverNetPort, ackHeader, dataArray);
     }
 
+    /**
+     * Receives the next packet, answering keep-alive probes from the server on the way
+     *
+     * @param packet
+     * @throws IOException
+     */
+    private void receive(DatagramPacket packet) throws IOException {
+        while (true) {
+            clientSocket.receive(packet);
+            RXPHeader header = RXPHelpers.getHeader(packet);
+            if (!header.isControl() || !RXPHelpers.passChecksum(packet)) {
+                return;
+            }
+            if (RXPHelpers.getControlOperation(packet) == RXPHeader.CTRL_KEEPALIVE) {
+                clientSocket.send(RXPHelpers.prepareControlPacket(serverIpAddress, serverNetPort, clientPort,
+                        serverRXPPort, RXPHeader.CTRL_KEEPALIVE_ACK));
+            }
+        }
+    }
+
+    /**
+     * Keeps reading the socket while no transfer is running so the server's keep-alive probes get answered
+     * and a FIN from the server is noticed; transfers take the client's lock, which keeps this thread out of the way
+     */
+    private void startKeepAliveResponder() {
+        if (keepAliveResponder != null && keepAliveResponder.isAlive()) {
+            return;
+        }
+        keepAliveResponder = new Thread(() -> {
+            DatagramPacket packet = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+            while (state != ClientState.CLOSED) {
+                synchronized (this) {
+                    pollWhileIdle(packet);
+                }
+                try {
+                    Thread.sleep(IDLE_POLL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        keepAliveResponder.setDaemon(true);
+        keepAliveResponder.start();
+    }
+
+    private void pollWhileIdle(DatagramPacket packet) {
+        if (state != ClientState.ESTABLISHED) {
+            return;
+        }
+        try {
+            clientSocket.setSoTimeout(IDLE_POLL);
+            receive(packet);
+            RXPHeader header = RXPHelpers.getHeader(packet);
+            if (RXPHelpers.passChecksum(packet) && RXPHelpers.isValidPorts(packet, clientPort, serverRXPPort)
+                    && header.isFIN() && !header.isACK()) {
+                closeRequested = true;
+                serverDisconnect();
+            }
+        } catch (SocketTimeoutException e) {
+            // nothing from the server
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                clientSocket.setSoTimeout(SOCKET_TIMEOUT);
+            } catch (SocketException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Disconnect connection from client
      */
-    public void clientDisconnect() {
+    public synchronized void clientDisconnect() {
+        if (state == ClientState.TICKET_SENT) {
+            // the server never heard from us, there is nothing to tear down
+            state = ClientState.CLOSED;
+            return;
+        }
         System.out.println("Beginning disconnection from client side");
         RXPHeader finHeader = RXPHelpers.initHeader(clientPort, serverRXPPort, 0, 0);
         finHeader.setFlags(false, false, true, false, false, false); // FIN.
@@ -448,7 +1492,7 @@ public class RXPClient {
         while (true) {
             try {
                 clientSocket.send(sendingPacket);
-                clientSocket.receive(receivePacket);
+                receive(receivePacket);
 
                 RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
 
@@ -482,7 +1526,7 @@ public class RXPClient {
     }
 
     /**
-     *
+     * Answers the server's FIN and closes the socket, a later setupRXP connects again
      */
     private void serverDisconnect() {
         state = ClientState.CLOSE_WAIT;
@@ -504,7 +1548,7 @@ public class RXPClient {
         while (true) {
             try {
                 clientSocket.send(finackPacket);
-                clientSocket.receive(packetResponse);
+                receive(packetResponse);
                 if (!RXPHelpers.passChecksum(packetResponse)) {
                     System.out.println("Dropping corrupted packet");
                     continue;
@@ -517,11 +1561,35 @@ public class RXPClient {
                 break;
             } catch (IOException e) {
                 e.printStackTrace();
+                break;
             }
         }
 
-//        state = ClientState.CLOSED;
-        System.exit(1);
+        closeRequested = false;
+        state = ClientState.CLOSED;
+        clientSocket.close();
+        System.out.println("Server closed the connection");
+    }
+
+    /**
+     * @return ticket from the last handshake, null if the server did not issue one
+     */
+    public byte[] getResumptionTicket() {
+        return resumptionTicket;
+    }
+
+    /**
+     * @param resumptionTicket ticket from an earlier connection, used by the next setupRXP
+     */
+    public void setResumptionTicket(byte[] resumptionTicket) {
+        this.resumptionTicket = resumptionTicket;
+    }
+
+    /**
+     * @param rateCap most bytes/s an upload may send, 0 for no cap
+     */
+    public void setRateCap(long rateCap) {
+        pacer.setRateCap(rateCap);
     }
 
     /**
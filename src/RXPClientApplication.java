@@ -1,7 +1,10 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Scanner;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 
 
 /**
@@ -9,9 +12,13 @@ import java.util.Scanner;
  */
 public class RXPClientApplication {
     private static RXPClient client;
+    private static RXPCluster cluster; // set when files are spread over several servers
+    private static Path ticketPath;
+    private static String scriptPath; // commands are read from here instead of the terminal when set
+    private static boolean deduplicate = false; // puts send only the chunks the server lacks
+
     public static void main(String[] args) {
         //take in arguments
-        Scanner scan = new Scanner(System.in);
         boolean connected = false;
         if (args.length > 0 && args[0].equalsIgnoreCase("FXA-client")) {
             if (args.length > 3) {
@@ -25,7 +32,60 @@ public class RXPClientApplication {
 
                     //P is the UDP port of NetEMU
                     int netEmuPort = Integer.parseInt(args[3]);
-                    client = new RXPClient(clientPort, netEmuIpAddress, netEmuPort);
+
+                    //Optional: -rate K caps uploads at K KB/s, -sockbuf MIN:MAX bounds the socket buffers in KB
+                    //-script F runs the commands in file F, one per line, instead of reading them from the terminal
+                    //-cluster A:P,A:P,... spreads the files over A P and these servers too, on ports X+1, X+2...
+                    //-replicas N stores every upload on N of them
+                    //-fsync none|periodic|complete says when downloaded files are forced to the disk
+                    //-dedup puts files by sending only the chunks the server doesn't have, see RXPChunkStore
+                    String[] others = null;
+                    int replicas = 1;
+                    for (int i = 4; i < args.length; i++) {
+                        if (args[i].equalsIgnoreCase("-cluster") && i + 1 < args.length) {
+                            others = args[++i].split(",");
+                        } else if (args[i].equalsIgnoreCase("-replicas") && i + 1 < args.length) {
+                            replicas = Integer.parseInt(args[++i]);
+                        }
+                    }
+                    if (others != null) {
+                        String[] nodes = new String[others.length + 1];
+                        nodes[0] = netEmuIpAddress + ":" + netEmuPort;
+                        System.arraycopy(others, 0, nodes, 1, others.length);
+                        cluster = new RXPCluster(clientPort, nodes);
+                        cluster.setReplicas(replicas);
+                        client = cluster.getClient();
+                    } else {
+                        client = new RXPClient(clientPort, netEmuIpAddress, netEmuPort);
+                    }
+
+                    for (int i = 4; i < args.length; i++) {
+                        if (args[i].equalsIgnoreCase("-cluster") || args[i].equalsIgnoreCase("-replicas")) {
+                            i++;
+                        } else if (args[i].equalsIgnoreCase("-script") && i + 1 < args.length) {
+                            scriptPath = args[++i];
+                        } else if (args[i].equalsIgnoreCase("-rate") && i + 1 < args.length) {
+                            client.setRateCap(Long.parseLong(args[++i]) * 1024);
+                        } else if (args[i].equalsIgnoreCase("-sockbuf") && i + 1 < args.length) {
+                            if (!RXPBufferTuner.setBounds(args[++i])) {
+                                System.exit(1);
+                            }
+                        } else if (args[i].equalsIgnoreCase("-fsync") && i + 1 < args.length) {
+                            if (!RXPStorageWriter.setSyncPolicy(args[++i])) {
+                                System.exit(1);
+                            }
+                        } else if (args[i].equalsIgnoreCase("-dedup")) {
+                            deduplicate = true;
+                            if (cluster != null) {
+                                cluster.setDeduplicate(true);
+                            }
+                        } else {
+                            System.err.println("Unknown option " + args[i]);
+                            System.exit(1);
+                        }
+                    }
+                    ticketPath = Paths.get(System.getProperty("user.dir"), ".rxp_ticket_" + clientPort);
+                    loadTicket();
                     System.out.println("Initialized RXP Client");
                 } catch (NumberFormatException e) {
                     System.err.println("The port number must be a valid port number.");
@@ -40,110 +100,252 @@ public class RXPClientApplication {
                 System.exit(1);
             }
         } else {
-            System.err.println("Use format: fxa-client X[client port] A[NetEmu IP] P[NetEmu Port]");
+            System.err.println("Use format: fxa-client X[client port] A[NetEmu IP] P[NetEmu Port] [-rate KB/s] [-sockbuf minKB:maxKB] [-script file] [-cluster ip:port,...] [-replicas N] [-fsync none|periodic|complete] [-dedup]");
             System.exit(1);
         }
 
-        long endTimeCount = System.currentTimeMillis();
-        InputStreamReader fileInputStream = new InputStreamReader(System.in);
-        BufferedReader buffRead = new BufferedReader(fileInputStream);
+        // commands come from the script when there is one, otherwise from the terminal; either way the
+        // read blocks until the next line is there, and the end of the input counts as disconnect
+        BufferedReader buffRead;
+        try {
+            if (scriptPath != null) {
+                buffRead = Files.newBufferedReader(Paths.get(scriptPath));
+            } else {
+                buffRead = new BufferedReader(new InputStreamReader(System.in));
+            }
+        } catch (IOException e) {
+            System.err.println("Script " + scriptPath + " could not be read");
+            System.exit(1);
+            return;
+        }
+        boolean failed = false;
         try {
             String commandEntries;
 
-            while ((System.currentTimeMillis() >= endTimeCount)) {
-                commandEntries = "";
-                if (buffRead.ready()) {
-                    commandEntries += buffRead.readLine();
-                    System.out.println(commandEntries);
-                    String[] split = commandEntries.split("\\s+");
-                    if (split.length > 0 && !commandEntries.equals("disconnect")) {
-                        switch (split[0]) {
-                            case "connect": {
-                                System.out.println("Attempting to connect");
-                                if (!connected && client.setupRXP()) {
-                                    System.out.println("Client has successfully connected to the server");
-                                    connected = true;
-                                } else {
-                                    System.out.println("Cannot connect");
-                                }
-                                break;
-                            }
-                            case "put": {
-                                if (split.length < 1) {
-                                    System.err.println("You need another argument after put");
-                                } else {
-                                    String fileName = split[1];
-
-                                    String filePath = System.getProperty("user.dir") + "/" + fileName;
-                                    System.out.println(fileName);
-                                    System.out.println(filePath);
-                                    boolean success = false;
-                                    byte[] file = RXPHelpers.fileToBytes(filePath);
-                                    if (file != null) {
-                                        if (client.sendFileNameUpload(fileName)) {
-                                            success = client.upload(RXPHelpers.fileToBytes(filePath));
-                                        }
-                                    } else {
-                                        System.out.println("File does not exist");
-                                    }
-
-                                    if (success) {
-                                        System.out.println("Successfully uploaded");
-                                    } else {
-                                        System.out.println("Upload failed");
-                                    }
+            while ((commandEntries = buffRead.readLine()) != null) {
+                commandEntries = commandEntries.trim();
+                if (commandEntries.isEmpty() || commandEntries.startsWith("#")) {
+                    continue;
+                }
+                System.out.println(commandEntries);
+                if (commandEntries.equalsIgnoreCase("disconnect")) {
+                    break;
+                }
+                String[] split = commandEntries.split("\\s+");
+                switch (split[0]) {
+                    case "connect": {
+                        System.out.println("Attempting to connect");
+                        if (client != null && client.getClientState() == ClientState.CLOSED) {
+                            connected = false; // the server closed the connection since
+                        }
+                        if (!connected && (cluster != null ? cluster.connect() : client.setupRXP())) {
+                            System.out.println("Client has successfully connected to the server");
+                            connected = true;
+                        } else {
+                            System.out.println("Cannot connect");
+                            failed = true;
+                        }
+                        break;
+                    }
+                    case "put": {
+                        if (split.length < 2) {
+                            System.err.println("You need another argument after put");
+                            failed = true;
+                        } else {
+                            String fileName = split[1];
 
-                                }
-                                break;
+                            String filePath = System.getProperty("user.dir") + "/" + fileName;
+                            System.out.println(fileName);
+                            System.out.println(filePath);
+                            boolean success = false;
+                            byte[] file = null;
+                            if (Files.isDirectory(Paths.get(filePath))) {
+                                // a directory goes up as its whole tree
+                                Path dir = Paths.get(filePath).normalize();
+                                success = cluster != null ? cluster.uploadTree(dir) : client.uploadTree(dir);
+                            } else {
+                                file = RXPHelpers.fileToBytes(filePath);
                             }
-                            case "get": {
-                                if (split.length > 1) {
-                                    String pathName = split[1];
-                                    //download file from server
-                                    if (!client.download(pathName)) {
-                                        System.out.println("Download failed");
-                                    } else {
-                                        System.out.println("Downloaded!");
-                                    }
-
-                                } else {
-                                    System.err.println("Need arg after get: filename");
+                            if (success) {
+                                // tree already sent
+                            } else if (file != null && cluster != null) {
+                                success = cluster.upload(fileName, file);
+                            } else if (file != null) {
+                                if (deduplicate) {
+                                    success = client.uploadDeduplicated(fileName, file);
+                                } else if (client.sendFileNameUpload(fileName, file.length)) {
+                                    success = client.upload(file);
                                 }
-                                break;
+                            } else {
+                                System.out.println("File does not exist");
                             }
 
-                            default: {
-                                System.err.println("Command invalid");
+                            if (success) {
+                                System.out.println("Successfully uploaded");
+                            } else {
+                                System.out.println("Upload failed");
+                                failed = true;
+                            }
+
+                        }
+                        break;
+                    }
+                    case "putall": {
+                        if (split.length < 2) {
+                            System.err.println("Need args after putall: filenames");
+                            failed = true;
+                            break;
+                        }
+                        ArrayList<String> names = new ArrayList<>();
+                        ArrayList<byte[]> files = new ArrayList<>();
+                        for (int i = 1; i < split.length; i++) {
+                            byte[] file = RXPHelpers.fileToBytes(System.getProperty("user.dir") + "/" + split[i]);
+                            if (file == null) {
+                                System.out.println(split[i] + " does not exist");
+                                failed = true;
                                 break;
                             }
+                            names.add(split[i]);
+                            files.add(file);
+                        }
+                        if (names.size() < split.length - 1) {
+                            break;
+                        }
+                        if (cluster != null ? cluster.uploadPack(names, files) : client.uploadPack(names, files)) {
+                            System.out.println("Successfully uploaded " + names.size() + " files");
+                        } else {
+                            System.out.println("Upload failed");
+                            failed = true;
+                        }
+                        break;
+                    }
+                    case "get": {
+                        if (split.length > 1) {
+                            String pathName = split[1];
+                            //download file from server
+                            if (!(cluster != null ? cluster.download(pathName) : client.download(pathName))) {
+                                System.out.println("Download failed");
+                                failed = true;
+                            } else {
+                                System.out.println("Downloaded!");
+                            }
+
+                        } else {
+                            System.err.println("Need arg after get: filename");
+                            failed = true;
                         }
-                    } else if (commandEntries.equalsIgnoreCase("disconnect")) {
-                        if (client.getClientState() == ClientState.CLOSED) {
-                            System.out.println("Connection does not exist.");
-                            scan.close();
-                            System.exit(0);
+                        break;
+                    }
+                    case "join": {
+                        if (split.length < 2) {
+                            System.err.println("Need arg after join: filename");
+                            failed = true;
+                        } else if (ownerOf(split[1]) == null || !ownerOf(split[1]).join(split[1])) {
+                            System.out.println("Join failed");
+                            failed = true;
+                        } else {
+                            System.out.println("Downloaded!");
                         }
-                        System.out.println("Disconnecting");
-                        client.clientDisconnect();
-                        scan.close();
-                        System.exit(0);
+                        break;
+                    }
+                    case "getdir": {
+                        if (split.length < 2) {
+                            System.err.println("Need arg after getdir: directory name");
+                            failed = true;
+                        } else if (!(cluster != null ? cluster.downloadTree(split[1]) : client.downloadTree(split[1]))) {
+                            System.out.println("Download failed");
+                            failed = true;
+                        } else {
+                            System.out.println("Downloaded!");
+                        }
+                        break;
+                    }
+                    case "exchange": {
+                        if (split.length < 3) {
+                            System.err.println("Need args after exchange: file to get, file to put");
+                            failed = true;
+                            break;
+                        }
+                        byte[] file = RXPHelpers.fileToBytes(System.getProperty("user.dir") + "/" + split[2]);
+                        if (cluster != null && !cluster.owners(split[1]).equals(cluster.owners(RXPStorageWriter.storedName(split[2])))) {
+                            System.out.println("Both files of an exchange have to be on the same servers");
+                            failed = true;
+                        } else if (file == null) {
+                            System.out.println("File does not exist");
+                            failed = true;
+                        } else if (ownerOf(split[1]) == null || !ownerOf(split[1]).exchange(split[1], split[2], file)) {
+                            System.out.println("Exchange failed");
+                            failed = true;
+                        } else {
+                            System.out.println("Exchanged!");
+                        }
+                        break;
+                    }
 
-                    } else {
-                        System.err.println("Command invalid.");
-                        System.exit(1);
+                    default: {
+                        System.err.println("Command invalid");
+                        failed = true;
                         break;
                     }
                 }
+                saveTicket();
             }
-
+            buffRead.close();
         } catch (IOException e) {
             e.printStackTrace();
+            failed = true;
+        }
+
+        if (cluster != null) {
+            System.out.println("Disconnecting");
+            cluster.disconnect();
+        } else if (client.getClientState() == ClientState.CLOSED) {
+            System.out.println("Connection does not exist.");
+        } else {
+            System.out.println("Disconnecting");
+            client.clientDisconnect();
+        }
+        // a script tells whoever runs it whether every command went through
+        System.exit(scriptPath != null && failed ? 1 : 0);
+    }
+
+    /**
+     * Client for the server that owns the file, the only one there is unless files are spread over a cluster
+     *
+     * @param fileName
+     * @return null if the owner can't be reached
+     */
+    private static RXPClient ownerOf(String fileName) {
+        return cluster != null ? cluster.owner(fileName) : client;
+    }
+
+    /**
+     * Picks up the resumption ticket saved by an earlier run so connect can skip the handshake
+     */
+    private static void loadTicket() {
+        if (!Files.exists(ticketPath)) {
+            return;
         }
         try {
-            buffRead.close();
+            client.setResumptionTicket(Files.readAllBytes(ticketPath));
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("Resumption ticket could not be read");
+        }
+    }
+
+    /**
+     * Saves the current resumption ticket for the next run, or removes a stale one the server refused
+     */
+    private static void saveTicket() {
+        byte[] ticket = client.getResumptionTicket();
+        try {
+            if (ticket != null) {
+                Files.write(ticketPath, ticket);
+            } else {
+                Files.deleteIfExists(ticketPath);
+            }
+        } catch (IOException e) {
+            System.err.println("Resumption ticket could not be saved");
         }
-        System.exit(0);
     }
 }
\ No newline at end of file
@@ -0,0 +1,247 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Spreads files over several servers, each an ordinary RXPServer with its own directory
+ * Every server gets VIRTUAL_NODES points on a hash ring and a file belongs to the server owning the first point
+ * at or after the hash of its name, so adding or removing a server only moves the files between it and its
+ * neighbours. With replicas above 1 a file is also stored on the next servers along the ring, which a GET
+ * falls back to when the owner doesn't answer or doesn't have it
+ *
+ * A server stores an upload under RXPStorageWriter.storedName, so that is the name an upload is placed by
+ * and the name it is found by later
+ *
+ * There is one RXPClient per server, each on its own port, connected the first time it is needed
+ */
+public class RXPCluster {
+    private static final int VIRTUAL_NODES = 64;
+
+    private final String[] nodes;
+    private final RXPClient[] clients;
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>(); // point on the ring -> server
+    private int replicas = 1;
+    private boolean deduplicate = false;
+
+    /**
+     * @param firstPort the client for server i binds port firstPort + i
+     * @param nodes address:port of each server, or of the NetEmu in front of it
+     */
+    public RXPCluster(int firstPort, String[] nodes) {
+        this.nodes = nodes;
+        this.clients = new RXPClient[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            String[] address = nodes[i].split(":");
+            if (address.length != 2) {
+                throw new IllegalArgumentException("Server must be given as address:port, not " + nodes[i]);
+            }
+            clients[i] = new RXPClient(firstPort + i, address[0], Integer.parseInt(address[1]));
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(hash(nodes[i] + "#" + v), i);
+            }
+        }
+    }
+
+    /**
+     * @param replicas number of servers each upload is stored on, at most the number of servers
+     */
+    public void setReplicas(int replicas) {
+        this.replicas = Math.max(1, Math.min(replicas, nodes.length));
+    }
+
+    /**
+     * @param deduplicate whether uploads only send the chunks a server doesn't have, see RXPChunkStore
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * @return the client for the first server, e.g. to keep its resumption ticket
+     */
+    public RXPClient getClient() {
+        return clients[0];
+    }
+
+    /**
+     * Servers a file is stored on, its owner first
+     *
+     * @param fileName
+     * @return indexes of the servers
+     */
+    public ArrayList<Integer> owners(String fileName) {
+        ArrayList<Integer> owners = new ArrayList<>();
+        Map.Entry<Integer, Integer> point = ring.ceilingEntry(hash(fileName));
+        while (owners.size() < replicas) {
+            if (point == null) {
+                point = ring.firstEntry(); // around the ring
+            }
+            if (!owners.contains(point.getValue())) {
+                owners.add(point.getValue());
+            }
+            point = ring.higherEntry(point.getKey());
+        }
+        return owners;
+    }
+
+    /**
+     * @param fileName
+     * @return connected client for the server that owns the file, null if it can't be reached
+     */
+    public RXPClient owner(String fileName) {
+        int node = owners(fileName).get(0);
+        return connect(node) ? clients[node] : null;
+    }
+
+    /**
+     * Connects to every server
+     *
+     * @return whether all of them answered
+     */
+    public boolean connect() {
+        boolean success = true;
+        for (int i = 0; i < nodes.length; i++) {
+            success &= connect(i);
+        }
+        return success;
+    }
+
+    /**
+     * GETs a file from its owner, or from the servers holding its replicas if that fails
+     *
+     * @param fileName
+     * @return success/failure
+     */
+    public boolean download(String fileName) {
+        for (int node : owners(fileName)) {
+            System.out.println("Getting " + fileName + " from " + nodes[node]);
+            if (connect(node) && clients[node].download(fileName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * POSTs a file to the owner of the name it will be stored under and to the servers its replicas go on
+     *
+     * @param fileName
+     * @param file
+     * @return true if every one of them stored it
+     */
+    public boolean upload(String fileName, byte[] file) {
+        boolean success = true;
+        for (int node : owners(RXPStorageWriter.storedName(fileName))) {
+            System.out.println("Putting " + fileName + " on " + nodes[node]);
+            boolean stored;
+            if (!connect(node)) {
+                stored = false;
+            } else if (deduplicate) {
+                stored = clients[node].uploadDeduplicated(fileName, file);
+            } else {
+                stored = clients[node].sendFileNameUpload(fileName, file.length) && clients[node].upload(file);
+            }
+            if (!stored) {
+                System.out.println("Could not store " + fileName + " on " + nodes[node]);
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * POSTs a directory tree to the owner of the directory it will be stored as and to the servers its replicas go on
+     *
+     * @param dir
+     * @return true if every one of them stored it
+     */
+    public boolean uploadTree(Path dir) {
+        boolean success = true;
+        for (int node : owners(RXPStorageWriter.storedName(dir.getFileName().toString()))) {
+            System.out.println("Putting " + dir + " on " + nodes[node]);
+            if (!connect(node) || !clients[node].uploadTree(dir)) {
+                System.out.println("Could not store " + dir + " on " + nodes[node]);
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * GETs a directory tree from its owner, or from the servers holding its replicas if that fails
+     *
+     * @param dirName
+     * @return success/failure
+     */
+    public boolean downloadTree(String dirName) {
+        for (int node : owners(dirName)) {
+            System.out.println("Getting " + dirName + " from " + nodes[node]);
+            if (connect(node) && clients[node].downloadTree(dirName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * POSTs many files as one RXPPack per group of servers they are stored on
+     *
+     * @param names
+     * @param files
+     * @return true if every server stored all of its files
+     */
+    public boolean uploadPack(List<String> names, List<byte[]> files) {
+        LinkedHashMap<ArrayList<Integer>, ArrayList<Integer>> groups = new LinkedHashMap<>(); // servers -> files
+        for (int i = 0; i < names.size(); i++) {
+            groups.computeIfAbsent(owners(RXPStorageWriter.storedName(names.get(i))), k -> new ArrayList<>()).add(i);
+        }
+        boolean success = true;
+        for (Map.Entry<ArrayList<Integer>, ArrayList<Integer>> group : groups.entrySet()) {
+            ArrayList<String> groupNames = new ArrayList<>();
+            ArrayList<byte[]> groupFiles = new ArrayList<>();
+            for (int i : group.getValue()) {
+                groupNames.add(names.get(i));
+                groupFiles.add(files.get(i));
+            }
+            for (int node : group.getKey()) {
+                System.out.println("Putting " + groupNames.size() + " files on " + nodes[node]);
+                if (!connect(node) || !clients[node].uploadPack(groupNames, groupFiles)) {
+                    System.out.println("Could not store them on " + nodes[node]);
+                    success = false;
+                }
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Disconnects from every server that was connected
+     */
+    public void disconnect() {
+        for (RXPClient client : clients) {
+            if (client.getClientState() != ClientState.CLOSED) {
+                client.clientDisconnect();
+            }
+        }
+    }
+
+    private boolean connect(int node) {
+        if (clients[node].getClientState() != ClientState.CLOSED) {
+            return true;
+        }
+        if (!clients[node].setupRXP()) {
+            System.out.println("Cannot connect to " + nodes[node]);
+            return false;
+        }
+        return true;
+    }
+
+    private static int hash(String key) {
+        return ByteBuffer.wrap(RXPHelpers.getHash(key.getBytes(Charset.forName("UTF-8")))).getInt();
+    }
+}
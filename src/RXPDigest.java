@@ -0,0 +1,456 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Merkle tree digest carried in the trailer (LAST) segment of every transfer
+ * The file is cut into blocks of BLOCK_SEGMENTS segments and each block is hashed on its own as soon as all of its
+ * segments are in, on the hashing threads, so blocks are checked in parallel while the transfer goes on and a
+ * block that is fetched again is simply hashed again. Pairs of block hashes are combined up to the root
+ *
+ * The trailer holds the root, the number of segments and the deepest level of the tree that fits in the segment,
+ * so a mismatch is narrowed down to the nodes of that level at once. A receiver that can ask the sender for the
+ * block hashes under a node (LEAVES_EXTENSION, see findSuspectBlocks) narrows it down to the blocks themselves
+ *
+ * Block hashes are CRC32C and CRC32 over the index and data of each segment, which is quick and catches a segment
+ * landing in the wrong position; they guard against transmission errors, not against someone forging a file
+ */
+public class RXPDigest {
+    public static final int BLOCK_SEGMENTS = 64;
+    public static final String LEAVES_EXTENSION = ".rxpleaves";
+    private static final int DATA_SIZE = 496;
+    private static final int TRAILER_FIXED = 16; // root, segment count, level of the nodes that follow
+    private static final int MAX_NODES = (DATA_SIZE - TRAILER_FIXED) / 8;
+    private static final int MAX_BLOCKS = Integer.MAX_VALUE / BLOCK_SEGMENTS; // past that a segment index overflows
+
+    private static ExecutorService hashers;
+
+    /**
+     * Gets segments of a file by index
+     */
+    public interface SegmentReader {
+        /**
+         * @param index
+         * @return the data of the segment, null past the end of the file
+         * @throws IOException
+         */
+        byte[] read(int index) throws IOException;
+    }
+
+    /**
+     * Segments of a block that are in so far
+     */
+    private static class Block {
+        private final byte[][] segments = new byte[BLOCK_SEGMENTS][];
+        private int filled = 0;
+    }
+
+    private final HashMap<Integer, Block> filling = new HashMap<>();
+    private final ArrayList<CompletableFuture<Long>> leaves = new ArrayList<>(); // by block, null until hashed
+    private int segmentCount = 0;
+    private int total = -1; // segments in the file, once it is known
+
+    /**
+     * Adds a segment to the digest, the segments may come in any order and again
+     * The block it belongs to is hashed once all of its segments have come (again)
+     *
+     * @param index position of the segment in the file
+     * @param data not changed afterwards
+     */
+    public void update(int index, byte[] data) {
+        int blockIndex = index / BLOCK_SEGMENTS;
+        Block block = filling.computeIfAbsent(blockIndex, k -> new Block());
+        if (block.segments[index % BLOCK_SEGMENTS] == null) {
+            block.filled++;
+        }
+        block.segments[index % BLOCK_SEGMENTS] = data;
+        segmentCount = Math.max(segmentCount, index + 1);
+        if (block.filled == blockSize(blockIndex)) {
+            submit(blockIndex);
+        }
+    }
+
+    /**
+     * Hashes the first segments of a file, each block on the hashing threads, and waits for them
+     *
+     * @param segments
+     * @param reader called from several threads at once
+     * @return
+     * @throws IOException if a block couldn't be read
+     */
+    public static RXPDigest of(int segments, SegmentReader reader) throws IOException {
+        RXPDigest digest = new RXPDigest();
+        digest.segmentCount = segments;
+        digest.total = segments;
+        for (int b = 0; b < blockCount(segments); b++) {
+            int blockIndex = b;
+            digest.setLeaf(b, CompletableFuture.supplyAsync(() -> {
+                byte[][] data = new byte[digest.blockSize(blockIndex)][];
+                try {
+                    for (int i = 0; i < data.length; i++) {
+                        data[i] = reader.read(blockIndex * BLOCK_SEGMENTS + i);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return leaf(blockIndex, data);
+            }, hashers()));
+        }
+        try {
+            for (CompletableFuture<Long> leaf : digest.leaves) {
+                leaf.join();
+            }
+        } catch (CompletionException e) {
+            throw readFailure(e);
+        }
+        return digest;
+    }
+
+    /**
+     * The block hashes the sender answers a LEAVES_EXTENSION request with
+     *
+     * @param reader
+     * @param firstLeaf first block
+     * @param count number of blocks, fewer if the file ends before
+     * @param parallel whether the reader may be called from several threads, otherwise it is read in order
+     * @return the hashes, 8 bytes each
+     * @throws IOException if the file couldn't be read or the range is negative
+     */
+    public static byte[] leaves(SegmentReader reader, int firstLeaf, int count, boolean parallel) throws IOException {
+        if (firstLeaf < 0 || count < 0) {
+            throw new IOException("No blocks " + firstLeaf + " to " + ((long) firstLeaf + count - 1));
+        }
+        int last = (int) Math.min((long) firstLeaf + count, MAX_BLOCKS);
+        ArrayList<CompletableFuture<Long>> hashes = new ArrayList<>();
+        for (int b = firstLeaf; b < last; b++) {
+            ArrayList<byte[]> data = new ArrayList<>();
+            if (parallel) {
+                // only the first segment is read here, to find where the file ends
+                byte[] first = reader.read(b * BLOCK_SEGMENTS);
+                if (first == null) {
+                    break;
+                }
+                int blockIndex = b;
+                hashes.add(CompletableFuture.supplyAsync(() -> {
+                    data.add(first);
+                    try {
+                        for (int i = 1; i < BLOCK_SEGMENTS; i++) {
+                            byte[] segment = reader.read(blockIndex * BLOCK_SEGMENTS + i);
+                            if (segment == null) {
+                                break;
+                            }
+                            data.add(segment);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return leaf(blockIndex, data.toArray(new byte[0][]));
+                }, hashers()));
+            } else {
+                for (int i = 0; i < BLOCK_SEGMENTS; i++) {
+                    byte[] segment = reader.read(b * BLOCK_SEGMENTS + i);
+                    if (segment == null) {
+                        break;
+                    }
+                    data.add(segment);
+                }
+                if (data.isEmpty()) {
+                    break;
+                }
+                hashes.add(CompletableFuture.completedFuture(leaf(b, data.toArray(new byte[0][]))));
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8 * hashes.size());
+        try {
+            for (CompletableFuture<Long> hash : hashes) {
+                buffer.putLong(hash.join());
+            }
+        } catch (CompletionException e) {
+            throw readFailure(e);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * the exception a reader threw on a hashing thread
+     */
+    private static IOException readFailure(CompletionException e) {
+        return e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause()
+                : new IOException(e.getCause());
+    }
+
+    /**
+     * Creates the trailer advertised after the last data segment
+     *
+     * @return
+     */
+    public byte[] trailer() {
+        setTotal(segmentCount);
+        long[] hashes = new long[blockCount(total)];
+        for (int b = 0; b < hashes.length; b++) {
+            Long leaf = leaf(b);
+            hashes[b] = leaf != null ? leaf : 0;
+        }
+        int level = 0;
+        while ((hashes.length + (1 << level) - 1) >> level > MAX_NODES) {
+            level++;
+        }
+        int span = 1 << level;
+        int nodes = (hashes.length + span - 1) / span;
+
+        ByteBuffer buffer = ByteBuffer.allocate(TRAILER_FIXED + 8 * nodes);
+        buffer.putLong(subtree(hashes, 0, hashes.length));
+        buffer.putInt(total);
+        buffer.putInt(level);
+        for (int start = 0; start < hashes.length; start += span) {
+            buffer.putLong(subtree(hashes, start, Math.min(span, hashes.length - start)));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Compares what was received against the trailer advertised by the sender
+     *
+     * @param trailer
+     * @return the {start, count} ranges of segments that have to be fetched again, empty if the file is intact;
+     * each covers whole nodes of the level in the trailer
+     */
+    public ArrayList<int[]> findSuspectRanges(byte[] trailer) {
+        ArrayList<int[]> suspects = new ArrayList<>();
+        if (trailer == null || trailer.length < TRAILER_FIXED) {
+            addRange(suspects, 0, Math.max(segmentCount, 1));
+            return suspects;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(trailer);
+        long root = buffer.getLong();
+        int fileTotal = buffer.getInt();
+        int level = buffer.getInt();
+        if (fileTotal < 0 || level < 0 || level > 30) {
+            addRange(suspects, 0, Math.max(segmentCount, 1));
+            return suspects;
+        }
+        setTotal(fileTotal);
+
+        int blocks = blockCount(total);
+        long[] hashes = new long[blocks];
+        boolean[] missing = new boolean[blocks];
+        boolean complete = true;
+        for (int b = 0; b < blocks; b++) {
+            Long leaf = leaf(b);
+            missing[b] = leaf == null;
+            hashes[b] = leaf != null ? leaf : 0;
+            complete &= leaf != null;
+        }
+        if (complete && segmentCount >= total && subtree(hashes, 0, blocks) == root) {
+            return suspects;
+        }
+
+        int span = 1 << level;
+        for (int start = 0; start < blocks; start += span) {
+            int count = Math.min(span, blocks - start);
+            boolean match = buffer.remaining() >= 8 && buffer.getLong() == subtree(hashes, start, count);
+            for (int b = start; b < start + count && match; b++) {
+                match = !missing[b];
+            }
+            if (!match) {
+                addBlocks(suspects, start, count);
+            }
+        }
+
+        // Root disagrees even though every node matches, nothing to narrow down so fetch it all
+        if (suspects.isEmpty()) {
+            addRange(suspects, 0, Math.max(total, 1));
+        }
+        return suspects;
+    }
+
+    /**
+     * Narrows a range that failed the check down to the blocks that differ, once the sender's hashes of the blocks
+     * in it came in. The hashes have to add up to the nodes in the trailer, or they can't be trusted
+     *
+     * @param trailer
+     * @param firstLeaf first block of the range, where a node of the trailer's level starts
+     * @param leafHashes the sender's, 8 bytes per block
+     * @return the {start, count} ranges of segments in blocks that differ, null if the hashes don't match the trailer
+     */
+    public ArrayList<int[]> findSuspectBlocks(byte[] trailer, int firstLeaf, byte[] leafHashes) {
+        if (trailer == null || trailer.length < TRAILER_FIXED || leafHashes.length % 8 != 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(trailer);
+        buffer.getLong();
+        int blocks = blockCount(buffer.getInt());
+        int span = 1 << buffer.getInt();
+        long[] theirs = new long[leafHashes.length / 8];
+        ByteBuffer.wrap(leafHashes).asLongBuffer().get(theirs);
+        if (firstLeaf % span != 0 || theirs.length == 0) {
+            return null;
+        }
+
+        for (int start = firstLeaf; start < firstLeaf + theirs.length; start += span) {
+            int count = Math.min(span, blocks - start);
+            int node = TRAILER_FIXED + 8 * (start / span);
+            if (count <= 0 || start + count > firstLeaf + theirs.length || node + 8 > trailer.length
+                    || ByteBuffer.wrap(trailer).getLong(node) != subtree(theirs, start - firstLeaf, count)) {
+                return null;
+            }
+        }
+
+        ArrayList<int[]> suspects = new ArrayList<>();
+        for (int i = 0; i < theirs.length; i++) {
+            Long leaf = leaf(firstLeaf + i);
+            if (leaf == null || leaf != theirs[i]) {
+                addBlocks(suspects, firstLeaf + i, 1);
+            }
+        }
+        return suspects;
+    }
+
+    /**
+     * Returns how many segments the file described by the trailer has
+     *
+     * @param trailer
+     * @return number of segments, -1 if the trailer is malformed
+     */
+    public static int trailerSegmentCount(byte[] trailer) {
+        if (trailer == null || trailer.length < TRAILER_FIXED) {
+            return -1;
+        }
+        return ByteBuffer.wrap(trailer).getInt(8);
+    }
+
+    /**
+     * the file ends at total, so the last block may be complete with fewer segments
+     */
+    private void setTotal(int total) {
+        this.total = total;
+        int last = blockCount(total) - 1;
+        Block block = filling.get(last);
+        if (block != null && block.filled == blockSize(last)) {
+            submit(last);
+        }
+    }
+
+    private int blockSize(int blockIndex) {
+        return total < 0 ? BLOCK_SEGMENTS
+                : (int) Math.max(0, Math.min(BLOCK_SEGMENTS, total - (long) blockIndex * BLOCK_SEGMENTS));
+    }
+
+    private void submit(int blockIndex) {
+        Block block = filling.remove(blockIndex);
+        byte[][] data = new byte[blockSize(blockIndex)][];
+        System.arraycopy(block.segments, 0, data, 0, data.length);
+        setLeaf(blockIndex, CompletableFuture.supplyAsync(() -> leaf(blockIndex, data), hashers()));
+    }
+
+    private void setLeaf(int blockIndex, CompletableFuture<Long> leaf) {
+        while (leaves.size() <= blockIndex) {
+            leaves.add(null);
+        }
+        leaves.set(blockIndex, leaf);
+    }
+
+    /**
+     * hash of the block, waiting for it if it's still being worked out; null if the block isn't complete
+     */
+    private Long leaf(int blockIndex) {
+        CompletableFuture<Long> leaf = blockIndex < leaves.size() ? leaves.get(blockIndex) : null;
+        if (leaf == null) {
+            return null;
+        }
+        try {
+            return leaf.join();
+        } catch (CompletionException e) {
+            return null;
+        }
+    }
+
+    private static long leaf(int blockIndex, byte[][] segments) {
+        CRC32C crc32c = new CRC32C();
+        CRC32 crc32 = new CRC32();
+        for (int i = 0; i < segments.length; i++) {
+            byte[] index = ByteBuffer.allocate(4).putInt(blockIndex * BLOCK_SEGMENTS + i).array();
+            crc32c.update(index, 0, 4);
+            crc32c.update(segments[i], 0, segments[i].length);
+            crc32.update(index, 0, 4);
+            crc32.update(segments[i], 0, segments[i].length);
+        }
+        return mix(crc32c.getValue() << 32 | crc32.getValue());
+    }
+
+    /**
+     * hash of the node over count blocks from start; a node without a partner at the end of a level moves up as it is
+     */
+    private static long subtree(long[] hashes, int start, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] level = new long[count];
+        System.arraycopy(hashes, start, level, 0, count);
+        while (count > 1) {
+            int next = (count + 1) / 2;
+            for (int i = 0; i < next; i++) {
+                level[i] = 2 * i + 1 < count ? mix(level[2 * i] * 0x9E3779B97F4A7C15L + level[2 * i + 1]) : level[2 * i];
+            }
+            count = next;
+        }
+        return level[0];
+    }
+
+    /**
+     * spreads the bits of a CRC, which is linear, before it is combined with others
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * @param segments
+     * @return number of blocks the segments fill
+     */
+    public static int blockCount(int segments) {
+        return (int) (((long) segments + BLOCK_SEGMENTS - 1) / BLOCK_SEGMENTS);
+    }
+
+    private void addBlocks(ArrayList<int[]> ranges, int firstBlock, int count) {
+        long start = (long) firstBlock * BLOCK_SEGMENTS;
+        long end = Math.min(total, ((long) firstBlock + count) * BLOCK_SEGMENTS);
+        addRange(ranges, (int) start, (int) (end - start));
+    }
+
+    private static void addRange(ArrayList<int[]> ranges, int start, int count) {
+        if (!ranges.isEmpty()) {
+            int[] last = ranges.get(ranges.size() - 1);
+            if (last[0] + last[1] == start) {
+                last[1] += count;
+                return;
+            }
+        }
+        ranges.add(new int[]{start, count});
+    }
+
+    private static synchronized ExecutorService hashers() {
+        if (hashers == null) {
+            hashers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "rxp-digest");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return hashers;
+    }
+}
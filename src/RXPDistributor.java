@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends one file to a group of clients at once: every segment is read and built once and the same packet goes
+ * to each member, with only the destination port in the header changed, instead of a transfer per client
+ *
+ * Clients join with a GET that has the LAST flag set; those that ask for the same file within JOIN_WINDOW of the
+ * first one make up the group, later ones start the next group. The file goes out in one pass without waiting
+ * for ACKs, and the segment index is split over the sequence number (low 16 bits) and the ACK number (high 16 bits)
+ * since there is no window to keep it apart from older segments. Members only speak up for what they miss:
+ * a LAST ACK with the ranges to send again, whenever they have been quiet for a while or the trailer came in
+ * with gaps before it, and an empty one once the file passed the digest check. Repairs only go to the member
+ * that asked for them. A member that stays silent for DROP_TIMEOUT is dropped
+ *
+ * The member connections forward their clients' LAST ACKs here through report and wait until isFinished
+ * The file is read a segment at a time as it goes out or is repaired, so it has to be one that can be read
+ * at any segment rather than a stream
+ */
+public class RXPDistributor extends Thread {
+    private static final int HEADER_SIZE = 16;
+    private static final long JOIN_WINDOW = 500;
+    private static final long DROP_TIMEOUT = 5000;
+    private static final int REPORT_POLL = 100;
+
+    private enum State { ACTIVE, DONE, DROPPED }
+
+    private static class Report {
+        private final RXPServer member;
+        private final ArrayList<int[]> ranges;
+
+        private Report(RXPServer member, ArrayList<int[]> ranges) {
+            this.member = member;
+            this.ranges = ranges;
+        }
+    }
+
+    private final Map<String, RXPDistributor> groups;
+    private final String fileName;
+    private final RXPUploadSource source;
+    private final int totalSegments;
+    private final int serverPort;
+    private final HashMap<RXPServer, State> members = new HashMap<>();
+    private final HashMap<RXPServer, Long> lastHeard = new HashMap<>();
+    private final LinkedBlockingQueue<Report> reports = new LinkedBlockingQueue<>();
+    private final RXPPacer pacer = new RXPPacer();
+    private boolean closed = false; // no more members once the file starts going out
+    private int sent = 0, repairs = 0;
+
+    private RXPDistributor(Map<String, RXPDistributor> groups, String fileName, RXPUploadSource source,
+                           int serverPort) {
+        super("rxp-distributor");
+        setDaemon(true);
+        this.groups = groups;
+        this.fileName = fileName;
+        this.source = source;
+        this.serverPort = serverPort;
+        this.totalSegments = source.getTotal();
+    }
+
+    /**
+     * Adds the connection to the group that is gathering for the file, or starts a new group
+     *
+     * @param groups groups gathering right now, by file, shared by the connections of a server
+     * @param fileName
+     * @param opener opens the file when a new group is started, the group closes it
+     * @param member
+     * @param serverPort RXP port of the server
+     * @return the group, null if the file doesn't exist or is a stream
+     */
+    public static RXPDistributor join(Map<String, RXPDistributor> groups, String fileName,
+                                      Supplier<RXPUploadSource> opener, RXPServer member, int serverPort) {
+        synchronized (groups) {
+            RXPDistributor group = groups.get(fileName);
+            if (group != null && group.add(member)) {
+                return group;
+            }
+            RXPUploadSource source = opener.get();
+            if (source == null) {
+                return null;
+            }
+            if (!source.canRepair()) {
+                System.out.println(fileName + " can only be read in order, it can't be distributed");
+                source.close();
+                return null;
+            }
+            group = new RXPDistributor(groups, fileName, source, serverPort);
+            group.add(member);
+            groups.put(fileName, group);
+            group.start();
+            return group;
+        }
+    }
+
+    private synchronized boolean add(RXPServer member) {
+        if (closed) {
+            return false;
+        }
+        members.put(member, State.ACTIVE);
+        lastHeard.put(member, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * A member's client sent a LAST ACK
+     *
+     * @param member
+     * @param ranges ranges it misses, a count of -1 runs to the end of the file; empty once it has the file
+     */
+    public void report(RXPServer member, ArrayList<int[]> ranges) {
+        reports.add(new Report(member, ranges));
+    }
+
+    /**
+     * The member's session ended before the file got across
+     *
+     * @param member
+     */
+    public synchronized void leave(RXPServer member) {
+        if (members.get(member) == State.ACTIVE) {
+            members.put(member, State.DROPPED);
+        }
+    }
+
+    /**
+     * @param member
+     * @return whether the group is done with the member, one way or the other
+     */
+    public synchronized boolean isFinished(RXPServer member) {
+        return members.get(member) != State.ACTIVE;
+    }
+
+    /**
+     * @param member
+     * @return whether the member's client has the file
+     */
+    public synchronized boolean isDelivered(RXPServer member) {
+        return members.get(member) == State.DONE;
+    }
+
+    /**
+     * Used to thread, part of Thread, which was extended
+     */
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(JOIN_WINDOW);
+        } catch (InterruptedException e) {
+            // start with whoever is there
+        }
+        ArrayList<RXPServer> group;
+        synchronized (groups) {
+            groups.remove(fileName, this);
+            synchronized (this) {
+                closed = true;
+                group = new ArrayList<>(members.keySet());
+            }
+        }
+        System.out.printf("Distributing %s to %d clients\n", fileName, group.size());
+
+        try {
+            // one pass over the file, each segment built once for the whole group
+            for (int packetNum = 0; packetNum <= totalSegments && hasActive(); packetNum++) {
+                byte[] packet = createPacket(packetNum);
+                for (RXPServer member : group) {
+                    if (!isFinished(member)) {
+                        send(member, packet);
+                    }
+                }
+                sent++;
+                handleReports(false);
+            }
+
+            // then the repairs, until every member has the file or has been dropped; a member that had nothing
+            // to report during the pass only has to speak up from here on
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                for (RXPServer member : group) {
+                    lastHeard.put(member, now);
+                }
+            }
+            while (hasActive()) {
+                handleReports(true);
+                dropSilent();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            dropAll(); // the file can't be read any more
+        } finally {
+            source.close();
+        }
+
+        int delivered = 0;
+        synchronized (this) {
+            for (State state : members.values()) {
+                if (state == State.DONE) delivered++;
+            }
+        }
+        System.out.printf("Distributed %s: %d segments went out once for %d clients, %d went out again, %d of them got it\n",
+                fileName, sent, group.size(), repairs, delivered);
+    }
+
+    /**
+     * Serves the reports that came in, waiting a little for one if asked to
+     */
+    private void handleReports(boolean wait) throws IOException {
+        Report report;
+        try {
+            report = wait ? reports.poll(REPORT_POLL, TimeUnit.MILLISECONDS) : reports.poll();
+        } catch (InterruptedException e) {
+            return;
+        }
+        while (report != null) {
+            synchronized (this) {
+                lastHeard.put(report.member, System.currentTimeMillis());
+                if (members.get(report.member) != State.ACTIVE) {
+                    report = reports.poll();
+                    continue;
+                }
+                if (report.ranges.isEmpty()) {
+                    members.put(report.member, State.DONE);
+                }
+            }
+            for (int[] range : report.ranges) {
+                int end = range[1] < 0 ? totalSegments + 1
+                        : (int) Math.min(totalSegments + 1, (long) range[0] + range[1]);
+                for (int packetNum = Math.max(0, range[0]); packetNum < end; packetNum++) {
+                    send(report.member, createPacket(packetNum));
+                    repairs++;
+                }
+            }
+            report = reports.poll();
+        }
+    }
+
+    private synchronized void dropSilent() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<RXPServer, State> member : members.entrySet()) {
+            if (member.getValue() == State.ACTIVE && now - lastHeard.get(member.getKey()) > DROP_TIMEOUT) {
+                System.out.println("Dropping a client that stopped answering");
+                member.setValue(State.DROPPED);
+            }
+        }
+    }
+
+    private synchronized void dropAll() {
+        for (Map.Entry<RXPServer, State> member : members.entrySet()) {
+            if (member.getValue() == State.ACTIVE) {
+                member.setValue(State.DROPPED);
+            }
+        }
+    }
+
+    private synchronized boolean hasActive() {
+        return members.containsValue(State.ACTIVE);
+    }
+
+    /**
+     * Sends the group's packet to one member, paced like any other segment
+     */
+    private void send(RXPServer member, byte[] packet) {
+        byte[] copy = packet.clone();
+        ByteBuffer.wrap(copy).putShort(2, (short) member.getClientRXPPort()); // destination port
+        pacer.pace(copy.length);
+        try {
+            member.sendDistributed(copy);
+        } catch (IOException e) {
+            e.printStackTrace();
+            leave(member);
+        }
+    }
+
+    /**
+     * segment packetNum of the file, or the trailer after the last one, without a destination port yet
+     */
+    private byte[] createPacket(int packetNum) throws IOException {
+        boolean last = packetNum >= totalSegments;
+        byte[] data = last ? source.getTrailer() : source.segment(packetNum);
+        RXPHeader header = RXPHelpers.initHeader(serverPort, 0, packetNum & 0xFFFF, packetNum >>> 16);
+        header.setFlags(false, false, false, false, false, last);
+        header.setSegmentLength(data.length);
+        header.setChecksum(data);
+        byte[] packet = new byte[HEADER_SIZE + data.length];
+        System.arraycopy(header.getHeaderBytes(), 0, packet, 0, HEADER_SIZE);
+        System.arraycopy(data, 0, packet, HEADER_SIZE, data.length);
+        return packet;
+    }
+}
@@ -0,0 +1,377 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+
+/**
+ * A file going each way over one session at the same time, what a request with both GET and POST set asks for
+ * Each side runs a send window for its own file and a receive window for the other one in the same loop
+ *
+ * ACKs ride along on the data: every data segment carries the cumulative ACK number and receive window of the
+ * other direction in its header, so an ACK only goes out on its own when no segment can take it right away.
+ * Duplicate and gap ACKs always go out on their own, since only those count towards a fast retransmit,
+ * and so does the LAST ACK with the ranges that failed the digest check. An ACK that rides along never covers
+ * the trailer, that is left to the LAST ACK like in a transfer in one direction
+ *
+ * Whoever owns the session does the socket work through an Endpoint, the exchange builds and reads the packets.
+ * Ranges that fail the digest check are fetched or sent again afterwards with a ranged GET/POST
+ */
+public class RXPExchange {
+    private static final int PACKET_SIZE = 512;
+    private static final int DATA_SIZE = 496;
+    private static final int SOCKET_TIMEOUT = 5000;
+    private static final int DRAIN_POLL = 2; // socket timeout while segments wait for the storage writer
+    private static final int MAX_TRIES = 5;
+
+    /**
+     * The socket work of whichever side runs the exchange
+     */
+    public interface Endpoint {
+        /**
+         * @param packet
+         * @param data whether it is a data segment, which may have to wait its turn, rather than an ACK
+         * @throws IOException
+         */
+        void send(DatagramPacket packet, boolean data) throws IOException;
+
+        /**
+         * @param packet
+         * @param timeout ms to wait
+         * @throws IOException SocketTimeoutException once the timeout passes without a packet
+         */
+        void receive(DatagramPacket packet, int timeout) throws IOException;
+    }
+
+    private final Endpoint endpoint;
+    private final InetAddress peerAddress;
+    private final int peerNetPort, localPort, remotePort;
+    private final RXPPacer pacer;
+    private final RXPBufferTuner bufferTuner;
+    private final RXPUploadSource source;
+    private final RXPStorageWriter.Sink sink;
+    private final RXPSendWindow sendWindow;
+    private final RXPReceiveWindow receiveWindow = new RXPReceiveWindow(RXPReceiveWindow.DEFAULT_SIZE);
+    private final RXPDigest receiveDigest = new RXPDigest();
+    private DatagramPacket requestAck; // the server's answer to the request, sent again if the request shows up again
+
+    private int received = 0; // segments polled out of the receive window, trailer included
+    private byte[] receiveTrailer;
+    private ArrayList<int[]> receiveSuspects = new ArrayList<>(); // ranges of the incoming file to fetch again
+    private ArrayList<int[]> sendSuspects = new ArrayList<>(); // ranges of the outgoing file to send again
+    private boolean sendDone = false; // the LAST ACK came back
+    private boolean receiveDone = false; // the LAST ACK went out
+    private boolean closeRequested = false;
+    private int lastAckNumber = -1; // ACK number the last ACK carried, on its own or on a segment
+    private int acksReceived = 0, acksSent = 0, acksCarried = 0;
+
+    /**
+     * @param endpoint
+     * @param peerAddress where packets go, i.e. the NetEmu or the client's address
+     * @param peerNetPort
+     * @param localPort RXP port of this side
+     * @param remotePort RXP port of the other side
+     * @param pacer paces the segments going out
+     * @param bufferTuner gets the measured transfer afterwards
+     * @param source the file going out
+     * @param sink where the file coming in goes
+     * @param peerWindow window the other side advertised before the exchange, 0 if it did not
+     */
+    public RXPExchange(Endpoint endpoint, InetAddress peerAddress, int peerNetPort, int localPort, int remotePort,
+                       RXPPacer pacer, RXPBufferTuner bufferTuner, RXPUploadSource source, RXPStorageWriter.Sink sink,
+                       int peerWindow) {
+        this.endpoint = endpoint;
+        this.peerAddress = peerAddress;
+        this.peerNetPort = peerNetPort;
+        this.localPort = localPort;
+        this.remotePort = remotePort;
+        this.pacer = pacer;
+        this.bufferTuner = bufferTuner;
+        this.source = source;
+        this.sink = sink;
+        this.sendWindow = new RXPSendWindow(Integer.MAX_VALUE, RXPSendWindow.MAX_SIZE, peerWindow);
+    }
+
+    /**
+     * @param requestAck sent again whenever the request that started the exchange comes in again
+     */
+    public void setRequestAck(DatagramPacket requestAck) {
+        this.requestAck = requestAck;
+    }
+
+    /**
+     * Runs both transfers until each has its LAST ACK and the other side has been quiet for a socket timeout,
+     * so a lost LAST ACK can still be sent again
+     *
+     * @return true if both files got across, whether or not they passed the digest check
+     */
+    public boolean run() {
+        DatagramPacket packet = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+        int tries = 0;
+        pacer.restart();
+        long startTime = System.nanoTime();
+
+        while (true) {
+            boolean waitIsShort = false;
+            try {
+                long paceWait = sendNew();
+                int timeout = SOCKET_TIMEOUT;
+                long ackDelay = receiveWindow.ackDelay();
+                if (receiveWindow.hasReady()) {
+                    timeout = DRAIN_POLL;
+                } else {
+                    if (paceWait > 0) {
+                        timeout = (int) Math.max(1, Math.min(timeout, paceWait / 1000000));
+                    }
+                    if (ackDelay >= 0) {
+                        timeout = (int) Math.max(1, Math.min(timeout, ackDelay));
+                    }
+                }
+                waitIsShort = timeout < SOCKET_TIMEOUT;
+                endpoint.receive(packet, timeout);
+
+                if (!RXPHelpers.passChecksum(packet)) {
+                    System.out.println("Dropping corrupted packet");
+                    continue;
+                }
+                if (!RXPHelpers.isValidPorts(packet, localPort, remotePort)) {
+                    System.out.println("Dropping packet of incorrect ports");
+                    continue;
+                }
+                RXPHeader header = RXPHelpers.getHeader(packet);
+                if (header.isFIN()) {   // the other side wants to terminate
+                    closeRequested = true;
+                    break;
+                }
+                if (header.isControl() || header.isSYN()) {
+                    continue;
+                }
+                if (header.isGET() || header.isPOST()) {
+                    if (sendDone && receiveDone) {
+                        break;  // the other side moved on to its next request, it resends that on timeout
+                    }
+                    if (requestAck != null && !header.isACK()) {
+                        endpoint.send(requestAck, false);   // our answer to the request was lost
+                    }
+                    continue;
+                }
+                tries = 0;
+
+                if (header.isACK()) {
+                    acksReceived++;
+                    if (header.isLAST()) {
+                        if (!sendDone) {
+                            sendSuspects = RXPHelpers.decodeRanges(RXPHelpers.getData(packet));
+                            sendDone = true;
+                        }
+                    } else if (!sendDone) {
+                        onAcked(sendWindow.onAck(header.getAckNum(), header.getWindow()));
+                        if (sendWindow.fastRetransmit()) {
+                            resendPaced(sendWindow.getBase());
+                        }
+                    }
+                    continue;
+                }
+
+                // a data segment, with the ACK of our own segments riding along
+                if (!sendDone) {
+                    onAcked(sendWindow.onPiggybackedAck(header.getAckNum(), header.getWindow()));
+                }
+                boolean ackNow = receiveWindow.accept(header.getSeqNum(), RXPHelpers.getData(packet), header.isLAST());
+                drain();
+                if (ackNow || receiveWindow.windowUpdateDue() || (receiveWindow.isComplete() && !receiveDone)) {
+                    if (!canCarryAck()) {
+                        sendAck();
+                    }
+                }
+            } catch (SocketTimeoutException s) {
+                try {
+                    if (waitIsShort) {
+                        // waited for the pacer, a delayed ACK or the storage writer
+                        drain();
+                        if (receiveWindow.ackDelay() == 0 || receiveWindow.windowUpdateDue()
+                                || (receiveWindow.isComplete() && !receiveDone)) {
+                            sendAck();
+                        }
+                        continue;
+                    }
+                    if (sendDone && receiveDone) {
+                        break;  // quiet for a whole timeout, the other side has our LAST ACK
+                    }
+                    if (tries++ >= MAX_TRIES) {
+                        System.out.println("Exchange timed out");
+                        break;
+                    }
+                    System.out.println("Timeout, resending..");
+                    if (!sendDone) {
+                        sendWindow.onTimeout();
+                        for (int packetNum = sendWindow.getBase(); packetNum < sendWindow.getNext(); packetNum++) {
+                            resendPaced(packetNum);
+                        }
+                    }
+                    if (receiveWindow.hasStarted()) {
+                        sendAck();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        long bytes = (long) (sendWindow.getNext() + receiveWindow.getSegmentsReceived()) * DATA_SIZE;
+        bufferTuner.onTransfer(bytes, elapsed, pacer.getSmoothedRtt());
+        System.out.printf("Exchanged %d segments out and %d in, %d ACKs rode along on segments, %d went on their own" +
+                        " and %d came back on their own, paced at %d KB/s, %s\n",
+                sendWindow.getNext(), receiveWindow.getSegmentsReceived(), acksCarried, acksSent, acksReceived,
+                pacer.getRate() / 1024, bufferTuner.describe());
+        return sendDone && receiveDone;
+    }
+
+    /**
+     * Sends new segments while the window and the pacer let them go
+     *
+     * @return ns until the pacer lets the next one go, 0 if none is waiting for it
+     */
+    private long sendNew() throws IOException {
+        while (!sendDone && sendWindow.canSend()) {
+            long paceWait = pacer.delay(PACKET_SIZE);
+            if (paceWait > 0) {
+                return paceWait;
+            }
+            DatagramPacket packet = createTransferPacket(sendWindow.getNext());
+            if (source.getTotal() >= 0) {
+                sendWindow.setTotal(source.getTotal() + 1);   // trailer goes last
+            }
+            pacer.onSend(packet.getLength());
+            sendWindow.nextToSend();
+            endpoint.send(packet, true);
+        }
+        return 0;
+    }
+
+    /**
+     * @return whether the next loop sends a new segment right away, which takes a due ACK along
+     */
+    private boolean canCarryAck() {
+        return !sendDone && sendWindow.canSend() && !receiveWindow.isComplete()
+                && receiveWindow.ackNumber() != lastAckNumber && pacer.delay(PACKET_SIZE) == 0;
+    }
+
+    private void onAcked(int acked) {
+        if (acked > 0) {
+            pacer.onAck(acked * DATA_SIZE, sendWindow.getRttSample());
+            source.release(sendWindow.getBase());
+        }
+    }
+
+    /**
+     * sends a segment that is already in flight again, it waits for the pacer like any other
+     */
+    private void resendPaced(int packetNum) throws IOException {
+        DatagramPacket packet = createTransferPacket(packetNum);
+        sendWindow.onResent(packetNum);
+        pacer.pace(packet.getLength());
+        endpoint.send(packet, true);
+    }
+
+    /**
+     * move in-order segments out of the window while the storage writer has room, the trailer is checked right away
+     */
+    private void drain() {
+        byte[] data;
+        while (sink.hasRoom() && (data = receiveWindow.poll()) != null) {
+            if (receiveWindow.isComplete()) {
+                receiveTrailer = data;
+                receiveSuspects = receiveDigest.findSuspectRanges(data);
+            } else {
+                sink.write(received, data);
+                receiveDigest.update(received, data);
+            }
+            received++;
+        }
+    }
+
+    /**
+     * segment packetNum of the outgoing file, or its trailer, with the ACK of the incoming one
+     */
+    private DatagramPacket createTransferPacket(int packetNum) throws IOException {
+        byte[] data = source.segment(packetNum);
+        boolean last = data == null;
+        if (last) {
+            data = source.getTrailer();
+        }
+        RXPHeader header = RXPHelpers.initHeader(localPort, remotePort, RXPSendWindow.seqOf(packetNum),
+                receiveWindow.ackNumber());
+        header.setFlags(false, false, false, false, false, last);
+        header.setWindow(receiveWindow.advertisedWindow());
+        header.setSegmentLength(data.length);
+        header.setChecksum(data);
+        lastAckNumber = receiveWindow.ackNumber();
+        receiveWindow.onAckSent();
+        acksCarried++;
+        return RXPHelpers.preparePacket(peerAddress, peerNetPort, header, data);
+    }
+
+    /**
+     * sends the cumulative ACK on its own, the LAST ACK names the ranges that failed the digest check
+     */
+    private void sendAck() throws IOException {
+        RXPHeader header = RXPHelpers.initHeader(localPort, remotePort, 0, receiveWindow.ackNumber());
+        header.setWindow(receiveWindow.advertisedWindow());
+        byte[] data;
+        if (receiveWindow.isComplete()) {
+            header.setFlags(true, false, false, false, false, true); // ACK LAST
+            data = RXPHelpers.encodeRanges(received - 1, receiveSuspects);
+            receiveDone = true;
+        } else {
+            header.setFlags(true, false, false, false, false, false); // ACK
+            data = new byte[0];
+        }
+        header.setSegmentLength(data.length);
+        header.setChecksum(data);
+        lastAckNumber = receiveWindow.ackNumber();
+        receiveWindow.onAckSent();
+        acksSent++;
+        endpoint.send(RXPHelpers.preparePacket(peerAddress, peerNetPort, header, data), false);
+    }
+
+    /**
+     * @return whether the other side sent a FIN during the exchange
+     */
+    public boolean isCloseRequested() {
+        return closeRequested;
+    }
+
+    /**
+     * @return ranges of the incoming file that failed the digest check
+     */
+    public ArrayList<int[]> getReceiveSuspects() {
+        return receiveSuspects;
+    }
+
+    /**
+     * @return ranges of the outgoing file the other side wants sent again
+     */
+    public ArrayList<int[]> getSendSuspects() {
+        return sendSuspects;
+    }
+
+    /**
+     * @return digest trailer of the incoming file, null if it never came
+     */
+    public byte[] getReceiveTrailer() {
+        return receiveTrailer;
+    }
+
+    /**
+     * @return digest of the incoming file as it was written
+     */
+    public RXPDigest getReceiveDigest() {
+        return receiveDigest;
+    }
+}
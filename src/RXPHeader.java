@@ -12,8 +12,13 @@ public class RXPHeader {
     private static final int ACK = 6;
     private static final int SEGLEN = 8;
     private static final int FLAG = 10;
+    private static final int WINDOW = 11; // receive window, in segments
     private static final int CHECKSUM = 12; //is four bytes
 
+    //Control operations, first byte of the data of a CTRL packet
+    public static final byte CTRL_KEEPALIVE = 1;
+    public static final byte CTRL_KEEPALIVE_ACK = 2;
+
     @SuppressWarnings("CanBeFinal")
     private byte[] header;
 
@@ -129,6 +134,37 @@ public class RXPHeader {
         return (header[FLAG] & 0b00000100) != 0;
     }
 
+    /**
+     * Marks the packet as a control packet, whose operation is the first byte of its data
+     * Has to be called after setFlags, which overwrites every flag
+     *
+     * @param CTRL
+     */
+    public void setControl(boolean CTRL) {
+        if (CTRL) {
+            header[FLAG] |= (byte) (1 << 1);
+        } else {
+            header[FLAG] &= (byte) ~(1 << 1);
+        }
+    }
+
+    public boolean isControl() {
+        return (header[FLAG] & 0b00000010) != 0;
+    }
+
+    /**
+     * How many segments past the acknowledged one the sender of this packet can still buffer
+     *
+     * @return
+     */
+    public int getWindow() {
+        return header[WINDOW] & 0xFF;
+    }
+
+    public void setWindow(int window) {
+        header[WINDOW] = (byte) Math.max(0, Math.min(window, 0xFF));
+    }
+
     public int getChecksum() {
         return (int) header[CHECKSUM] << 24 & 0xFF000000 |
                 header[CHECKSUM + 1] << 16 & 0x00FF0000 |
@@ -1,10 +1,11 @@
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -20,7 +21,6 @@ import java.util.zip.Checksum;
  */
 public class RXPHelpers {
 
-    private static final int PACKET_SIZE = 512;
     private static final int DATA_SIZE = 496;
     private static final int HEADER_SIZE = 16;
 
@@ -47,6 +47,7 @@ public class RXPHelpers {
     /**
      * Prepares a packet by combining the passed-in header and data and putting it in a packet
      * Data passed-in should already be ready for combining
+     * The datagram is only as long as the header and data, an ACK without data is just the header
      *
      * @param destIP
      * @param destPort
@@ -55,12 +56,43 @@ public class RXPHelpers {
      * @return sendPacket
      */
     public static DatagramPacket preparePacket(InetAddress destIP, int destPort, RXPHeader header, byte[] data) {
-        byte[] packetBytes = new byte[PACKET_SIZE];
+        byte[] packetBytes = new byte[HEADER_SIZE + data.length];
 
         System.arraycopy(header.getHeaderBytes(), 0, packetBytes, 0, HEADER_SIZE);
         System.arraycopy(data, 0, packetBytes, HEADER_SIZE, data.length);
 
-        return new DatagramPacket(packetBytes, PACKET_SIZE, destIP, destPort);
+        return new DatagramPacket(packetBytes, packetBytes.length, destIP, destPort);
+    }
+
+    /**
+     * Prepares a control packet, the operation goes in the first byte of the data
+     *
+     * @param destIP
+     * @param destPort
+     * @param srcRXPPort
+     * @param dstRXPPort
+     * @param operation one of the RXPHeader.CTRL_ operations
+     * @return sendPacket
+     */
+    public static DatagramPacket prepareControlPacket(InetAddress destIP, int destPort, int srcRXPPort, int dstRXPPort, byte operation) {
+        RXPHeader header = initHeader(srcRXPPort, dstRXPPort, 0, 0);
+        header.setFlags(false, false, false, false, false, false);
+        header.setControl(true);
+        byte[] data = new byte[]{operation};
+        header.setSegmentLength(data.length);
+        header.setChecksum(data);
+        return preparePacket(destIP, destPort, header, data);
+    }
+
+    /**
+     * Returns the operation of a control packet
+     *
+     * @param receivePacket
+     * @return operation, 0 if the packet has no data
+     */
+    public static byte getControlOperation(DatagramPacket receivePacket) {
+        byte[] data = getData(receivePacket);
+        return data.length > 0 ? data[0] : 0;
     }
 
     /**
@@ -71,7 +103,8 @@ public class RXPHelpers {
      */
     public static byte[] getData(DatagramPacket receivePacket) {
         RXPHeader receiveHeader = getHeader(receivePacket);
-        int data_length = receiveHeader.getSegmentLength();
+        // never past what actually arrived, the rest of the buffer still holds an older packet
+        int data_length = Math.max(0, Math.min(receiveHeader.getSegmentLength(), receivePacket.getLength() - HEADER_SIZE));
         byte[] extractedData = new byte[data_length];
         byte[] packet = receivePacket.getData();
 
@@ -139,6 +172,40 @@ public class RXPHelpers {
         return data;
     }
 
+    /**
+     * Opens a file to be sent, read a segment at a time rather than loaded whole
+     *
+     * @param pathName
+     * @return null if the file can't be read
+     */
+    public static RXPUploadSource openFile(String pathName) {
+        try {
+            return new RXPUploadSource(Paths.get(pathName));
+        } catch (NoSuchFileException e1) {
+            System.out.println("File doesn't exist");
+        } catch (IOException e) {
+            System.err.println("File could not be read");
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Resolves a file name a client sent against the working directory
+     *
+     * @param fileName
+     * @return the path, null if it leads outside the working directory
+     */
+    public static Path insideWorkingDirectory(String fileName) {
+        try {
+            Path base = Paths.get("").toAbsolutePath().normalize();
+            Path path = base.resolve(fileName).normalize();
+            return path.startsWith(base) && !path.equals(base) ? path : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
     /**
      * Performs an MD5 hash on the data
      *
@@ -158,43 +225,144 @@ public class RXPHelpers {
     }
 
     /**
-     * Takes the byte data of the received packets and assembles them into the original file
+     * Number of data segments needed to carry a file of the given length
+     *
+     * @param fileLength
+     * @return
+     */
+    public static int getSegmentCount(int fileLength) {
+        int segments = fileLength / DATA_SIZE;
+        if (fileLength % DATA_SIZE > 0) segments += 1; //1 extra packet if there's leftover data
+        return segments;
+    }
+
+    /**
+     * Creates the data of a GET/POST that only asks for a range of segments of the file
+     * The filename is followed by a 0 byte, the first segment and the number of segments
+     *
+     * @param fileName
+     * @param start first segment
+     * @param count number of segments
+     * @return
+     */
+    public static byte[] makeRangeRequest(String fileName, int start, int count) {
+        byte[] name = fileName.getBytes(Charset.forName("UTF-8"));
+        return ByteBuffer.allocate(name.length + 9).put(name).put((byte) 0).putInt(start).putInt(count).array();
+    }
+
+    /**
+     * Creates the data of a POST for a whole file that also tells the receiver how long the file is
+     * It has the shape of a range request with a count of -1, followed by the length
      *
-     * @param bytesReceived the byte data of the received packets
-     * @param fileName name of the outputted file
+     * @param fileName
+     * @param size
      * @return
      */
-    public static boolean combineBytesToFile(ArrayList<byte[]> bytesReceived, String fileName) {
-        fileName = "downloaded_" + fileName;
+    public static byte[] makeSizedRequest(String fileName, long size) {
+        byte[] name = fileName.getBytes(Charset.forName("UTF-8"));
+        return ByteBuffer.allocate(name.length + 17).put(name).put((byte) 0).putInt(0).putInt(-1).putLong(size)
+                .array();
+    }
 
-        int bufferSize = bytesReceived.size();
-        int lastByteArrayLength = bytesReceived.get(bufferSize - 1).length;    // Length of last data
-        int fileSize = (bufferSize - 1) * DATA_SIZE + lastByteArrayLength;    // number of bytes in file
+    /**
+     * Returns the filename from the data of a GET/POST, with or without a range
+     *
+     * @param request
+     * @return
+     */
+    public static String requestedFileName(byte[] request) {
+        int end = 0;
+        while (end < request.length && request[end] != 0) end++;
+        return byteArrToStr(Arrays.copyOf(request, end));
+    }
 
-        byte[] fileData = new byte[fileSize];
-        for (int i = 0; i < bufferSize - 1; i++) {
-            System.arraycopy(bytesReceived.get(i), 0, fileData, i * DATA_SIZE, DATA_SIZE);
+    /**
+     * Returns the range from the data of a GET/POST
+     *
+     * @param request
+     * @return {start, count}, or null if the whole file was requested
+     */
+    public static int[] requestedRange(byte[] request) {
+        int end = 0;
+        while (end < request.length && request[end] != 0) end++;
+        if (request.length - end < 9) {
+            return null;
         }
+        ByteBuffer buffer = ByteBuffer.wrap(request, end + 1, 8);
+        int[] range = {buffer.getInt(), buffer.getInt()};
+        return range[1] < 0 ? null : range; // a count of -1 is the whole file, see makeSizedRequest
+    }
 
-        // Copy last data
-        System.arraycopy(bytesReceived.get(bufferSize - 1), 0, fileData, (bufferSize - 1) * DATA_SIZE, lastByteArrayLength);
+    /**
+     * Returns the length of the file announced in the data of a POST
+     *
+     * @param request
+     * @return the length, -1 if it wasn't given
+     */
+    public static long requestedSize(byte[] request) {
+        int end = 0;
+        while (end < request.length && request[end] != 0) end++;
+        if (request.length - end < 17) {
+            return -1;
+        }
+        return ByteBuffer.wrap(request, end + 9, 8).getLong();
+    }
 
-        String fileDir = System.getProperty("user.dir") + "/" + fileName;
+    /**
+     * Creates the data of a request with both GET and POST set, which exchanges two files
+     * The name of the file to GET is followed by a 0 byte and the name of the file to POST
+     *
+     * @param getName
+     * @param postName
+     * @return
+     */
+    public static byte[] makeExchangeRequest(String getName, String postName) {
+        byte[] get = getName.getBytes(Charset.forName("UTF-8"));
+        byte[] post = postName.getBytes(Charset.forName("UTF-8"));
+        return ByteBuffer.allocate(get.length + 1 + post.length).put(get).put((byte) 0).put(post).array();
+    }
 
-        File file = new File(fileDir);
-        try (FileOutputStream fout = new FileOutputStream(file)) {
-            // if file doesn't exists, then create it
-            if (!file.exists()) {
-                file.createNewFile();
-            }
-            fout.write(fileData);
-            fout.flush();
-            fout.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+    /**
+     * Returns the filenames from the data of an exchange request
+     *
+     * @param request
+     * @return {name to GET, name to POST}
+     */
+    public static String[] exchangedFileNames(byte[] request) {
+        String getName = requestedFileName(request);
+        int start = Math.min(request.length, getName.getBytes(Charset.forName("UTF-8")).length + 1);
+        return new String[]{getName, byteArrToStr(Arrays.copyOfRange(request, start, request.length))};
+    }
+
+    /**
+     * Creates the data of a LAST ACK: the packet number followed by any ranges that failed the integrity check
+     *
+     * @param packetNum
+     * @param ranges {start, count} pairs
+     * @return
+     */
+    public static byte[] encodeRanges(int packetNum, ArrayList<int[]> ranges) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 * ranges.size()).putInt(packetNum);
+        for (int[] range : ranges) {
+            buffer.putInt(range[0]).putInt(range[1]);
         }
-        return true;
+        return buffer.array();
+    }
+
+    /**
+     * Reads the ranges out of the data of a LAST ACK
+     *
+     * @param data
+     * @return {start, count} pairs, empty if the receiver accepted the file
+     */
+    public static ArrayList<int[]> decodeRanges(byte[] data) {
+        ArrayList<int[]> ranges = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.remaining() >= 4) buffer.getInt();
+        while (buffer.remaining() >= 8) {
+            ranges.add(new int[]{buffer.getInt(), buffer.getInt()});
+        }
+        return ranges;
     }
 
     /**
@@ -212,6 +380,22 @@ public class RXPHelpers {
 //        return (int) result.getValue();
     }
 
+    /**
+     * Converts a byte array to lowercase hex, e.g. to name a file after a hash
+     *
+     * @param bytes
+     * @return
+     */
+    public static String bytesToHex(byte[] bytes) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = hex[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = hex[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
     /**
      * Converts a byte array to a string
      *
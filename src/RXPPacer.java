@@ -0,0 +1,217 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads a sender's segments out over time instead of sending a whole window back to back
+ * The pacing rate follows the delivery rate measured from the ACKs: the highest rate seen over the last
+ * RATE_ROUNDS round trips, times a gain that doubles it while it keeps growing and afterwards cycles
+ * slightly above and below it so a rise in bandwidth is still found
+ *
+ * On top of that the operator can cap each connection and all connections of the process together,
+ * each cap is a token bucket and a segment waits until every bucket it goes through has the tokens for it
+ */
+public class RXPPacer {
+    private static final long INITIAL_RATE = 1024 * 1024; // bytes/s until the first delivery rate sample
+    private static final long MIN_RATE = 16 * 1024;
+    private static final double STARTUP_GAIN = 2.0;
+    private static final double[] CYCLE_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+    private static final int RATE_ROUNDS = 10;
+    private static final int STARTUP_ROUNDS = 3; // rounds without 25% growth before leaving startup
+    private static final long MIN_ROUND = 1000000; // ns, rounds are at least a ms so samples aren't noise
+    private static final int MIN_BURST = 4 * 512;
+    private static final long BURST_TIME = 1000000; // ns of sending that may go out back to back
+    private static final long MIN_SLEEP = 200000; // ns, shorter waits overshoot badly so they are kept as debt
+
+    private static final Bucket globalBucket = new Bucket();
+    private static volatile long globalRateCap = 0;
+
+    private final Bucket bucket = new Bucket();
+    private long rateCap = 0;
+    private boolean globalCapped = true;
+
+    // round trip time, ns
+    private long srtt = 0;
+
+    // delivery rate, bytes/s
+    private final long[] roundRates = new long[RATE_ROUNDS];
+    private int round = 0;
+    private long delivered = 0;
+    private long roundStartDelivered = 0;
+    private long roundStart = 0;
+    private boolean startup = true;
+    private long startupBest = 0;
+    private int roundsWithoutGrowth = 0;
+
+    /**
+     * Token bucket; tokens can go negative when a short wait is skipped, the debt is paid by the next wait
+     */
+    private static class Bucket {
+        private double tokens = 0;
+        private long last = System.nanoTime();
+
+        synchronized long wait(int bytes, long rate, long now) {
+            double burst = Math.max(MIN_BURST, rate * (double) BURST_TIME / 1e9);
+            tokens = Math.min(burst, tokens + (now - last) * (double) rate / 1e9);
+            last = now;
+            return tokens >= bytes ? 0 : (long) ((bytes - tokens) * 1e9 / rate);
+        }
+
+        synchronized void take(int bytes) {
+            tokens -= bytes;
+        }
+    }
+
+    /**
+     * How long until a datagram may go out; a sender with nothing else to do can just call pace
+     *
+     * @param bytes size of the datagram
+     * @return ns to wait, 0 if it can go now
+     */
+    public long delay(int bytes) {
+        long now = System.nanoTime();
+        long wait = bucket.wait(bytes, getRate(), now);
+        long globalCap = globalRateCap;
+        if (globalCapped && globalCap > 0) {
+            wait = Math.max(wait, globalBucket.wait(bytes, globalCap, now));
+        }
+        return wait >= MIN_SLEEP ? wait : 0;
+    }
+
+    /**
+     * Takes the tokens for a datagram that is going out
+     *
+     * @param bytes size of the datagram
+     */
+    public void onSend(int bytes) {
+        bucket.take(bytes);
+        if (globalCapped && globalRateCap > 0) {
+            globalBucket.take(bytes);
+        }
+    }
+
+    /**
+     * Waits until the process-wide cap lets the datagram out and takes its tokens, for whoever sends
+     * on behalf of pacers that leave the global cap to it
+     *
+     * @param bytes size of the datagram
+     */
+    public static void paceGlobal(int bytes) {
+        long globalCap = globalRateCap;
+        if (globalCap <= 0) {
+            return;
+        }
+        long wait = globalBucket.wait(bytes, globalCap, System.nanoTime());
+        if (wait >= MIN_SLEEP) {
+            LockSupport.parkNanos(wait);
+        }
+        globalBucket.take(bytes);
+    }
+
+    /**
+     * Waits until the datagram may go out and takes its tokens
+     *
+     * @param bytes size of the datagram about to be sent
+     */
+    public void pace(int bytes) {
+        long wait = delay(bytes);
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        onSend(bytes);
+    }
+
+    /**
+     * Feeds an ACK into the estimates
+     *
+     * @param bytesAcked data newly acknowledged
+     * @param rttSample round trip time measured by the ACK in ns, -1 if it measured none
+     */
+    public void onAck(int bytesAcked, long rttSample) {
+        long now = System.nanoTime();
+        if (rttSample > 0) {
+            srtt = srtt == 0 ? rttSample : (7 * srtt + rttSample) / 8;
+        }
+        delivered += bytesAcked;
+        if (roundStart == 0) {
+            startRound(now);
+            return;
+        }
+
+        long elapsed = now - roundStart;
+        if (elapsed < Math.max(MIN_ROUND, srtt)) {
+            return;
+        }
+        long rate = (long) ((delivered - roundStartDelivered) * 1e9 / elapsed);
+        round++;
+        roundRates[round % RATE_ROUNDS] = rate;
+
+        if (startup) {
+            if (rate >= startupBest * 5 / 4) {
+                startupBest = rate;
+                roundsWithoutGrowth = 0;
+            } else if (++roundsWithoutGrowth >= STARTUP_ROUNDS) {
+                startup = false;
+            }
+        }
+        startRound(now);
+    }
+
+    /**
+     * A new transfer starts, the time in between is not a round
+     */
+    public void restart() {
+        roundStart = 0;
+    }
+
+    private void startRound(long now) {
+        roundStart = now;
+        roundStartDelivered = delivered;
+    }
+
+    /**
+     * @return current pacing rate in bytes/s
+     */
+    public long getRate() {
+        long best = 0;
+        for (long rate : roundRates) {
+            best = Math.max(best, rate);
+        }
+        long rate;
+        if (best == 0) {
+            rate = (long) (INITIAL_RATE * STARTUP_GAIN);
+        } else if (startup) {
+            rate = (long) (best * STARTUP_GAIN);
+        } else {
+            rate = (long) (best * CYCLE_GAINS[round % CYCLE_GAINS.length]);
+        }
+        rate = Math.max(rate, MIN_RATE);
+        return rateCap > 0 ? Math.min(rate, rateCap) : rate;
+    }
+
+    /**
+     * @return smoothed round trip time in ns, 0 before the first sample
+     */
+    public long getSmoothedRtt() {
+        return srtt;
+    }
+
+    /**
+     * @param rateCap most bytes/s this connection may send, 0 for no cap
+     */
+    public void setRateCap(long rateCap) {
+        this.rateCap = rateCap;
+    }
+
+    /**
+     * @param globalCapped false if the datagrams are passed through paceGlobal on their way out instead
+     */
+    public void setGlobalCapped(boolean globalCapped) {
+        this.globalCapped = globalCapped;
+    }
+
+    /**
+     * @param rateCap most bytes/s all connections of this process may send together, 0 for no cap
+     */
+    public static void setGlobalRateCap(long rateCap) {
+        globalRateCap = rateCap;
+    }
+}
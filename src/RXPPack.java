@@ -0,0 +1,109 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many small files sent as one upload, so they share full segments and a single POST instead of each
+ * costing a POST, a mostly empty segment, a trailer and their ACKs
+ *
+ * A pack is a manifest followed by the contents of the files back to back:
+ * MAGIC, the number of files, then for each file the length of its name, the name in UTF-8 and its length
+ * It is uploaded under a name ending in EXTENSION and the server unpacks it once it passed the digest check,
+ * each file stored as if it had been uploaded on its own
+ */
+public class RXPPack {
+    public static final String EXTENSION = ".rxppack";
+    private static final int MAGIC = 0x52585050;
+    private static final int MIN_ENTRY = 7; // name length, a name of one byte and the file length
+
+    /**
+     * @param names names the files are stored under
+     * @param files their contents
+     * @return the pack
+     */
+    public static byte[] pack(List<String> names, List<byte[]> files) {
+        ArrayList<byte[]> encoded = new ArrayList<>();
+        int length = 8;
+        for (int i = 0; i < names.size(); i++) {
+            byte[] name = names.get(i).getBytes(Charset.forName("UTF-8"));
+            encoded.add(name);
+            length += 2 + name.length + 4 + files.get(i).length;
+        }
+        ByteBuffer pack = ByteBuffer.allocate(length).putInt(MAGIC).putInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            pack.putShort((short) encoded.get(i).length).put(encoded.get(i)).putInt(files.get(i).length);
+        }
+        for (byte[] file : files) {
+            pack.put(file);
+        }
+        return pack.array();
+    }
+
+    /**
+     * @param fileName name an upload was sent under
+     * @return whether it is a pack to unpack
+     */
+    public static boolean isPack(String fileName) {
+        return fileName.endsWith(EXTENSION);
+    }
+
+    /**
+     * Stores the files of a pack next to it, each under RXPStorageWriter.storedName, and removes the pack
+     * A name that would leave the directory is refused
+     *
+     * @param pack
+     * @return number of files unpacked, -1 if the pack is damaged
+     */
+    public static int unpack(File pack) {
+        File dir = pack.getAbsoluteFile().getParentFile();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pack)))) {
+            if (in.readInt() != MAGIC) {
+                System.out.println(pack.getName() + " is not a pack");
+                return -1;
+            }
+            int count = in.readInt();
+            long left = pack.length() - 8; // bytes after the count not yet taken by the manifest or the files in it
+            if (count < 0 || count > left / MIN_ENTRY) {
+                System.out.println(pack.getName() + " can't hold the " + count + " files its manifest says");
+                return -1;
+            }
+            String[] names = new String[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                names[i] = RXPHelpers.byteArrToStr(name);
+                lengths[i] = in.readInt();
+                left -= 2 + name.length + 4 + (long) lengths[i];
+                if (names[i].isEmpty() || names[i].contains("/") || names[i].contains("\\") || names[i].equals("..")
+                        || lengths[i] < 0 || left < 0) {
+                    System.out.println("Refusing file " + names[i] + " in " + pack.getName());
+                    return -1;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] data = new byte[lengths[i]];
+                in.readFully(data);
+                Files.write(new File(dir, RXPStorageWriter.storedName(names[i])).toPath(), data);
+            }
+            System.out.printf("Unpacked %d files from %s\n", count, pack.getName());
+            return count;
+        } catch (EOFException e) {
+            System.out.println(pack.getName() + " ends before its manifest says");
+            return -1;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            pack.delete();
+        }
+    }
+}
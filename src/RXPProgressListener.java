@@ -0,0 +1,10 @@
+/**
+ * Told how far a transfer got, on the thread that runs the transfer, so it should return quickly
+ */
+public interface RXPProgressListener {
+    /**
+     * @param bytes bytes of the file transferred so far
+     * @param total size of the file, -1 while it isn't known yet
+     */
+    void onProgress(long bytes, long total);
+}
@@ -0,0 +1,179 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Receiving side of a transfer: puts segments back in order and decides when to acknowledge them
+ * ACKs are cumulative and coalesced, one goes out for every ACK_EVERY in-order segments or ACK_DELAY ms
+ * after the first unacknowledged one, whichever comes first. Gaps, duplicates and the LAST segment
+ * are acknowledged right away so the sender learns about them as soon as possible
+ *
+ * Every ACK advertises how many more segments fit: the buffer size less the in-order segments that have not
+ * been drained to storage yet. Segments past that are dropped, and once a closed window opens up again
+ * an ACK goes out to say so. The receiver only drains while its RXPStorageWriter has room, so a slow disk
+ * shows up here as a smaller window
+ */
+public class RXPReceiveWindow {
+    public static final int DEFAULT_SIZE = 64;
+    public static final int ACK_EVERY = 2;
+    public static final long ACK_DELAY = 40;
+    private static final int SEQ_MASK = 0xFFFF;
+    private static final int SEQ_HALF = 0x8000;
+
+    private final int size;
+    private int expected = 0; // index of the next in-order segment
+    private int lastIndex = -1; // index of the LAST segment once it has been seen
+    private int polled = 0;
+    private final HashMap<Integer, byte[]> outOfOrder = new HashMap<>();
+    private final ArrayDeque<byte[]> ready = new ArrayDeque<>();
+
+    private int lastAdvertised = -1;
+    private int unacked = 0;
+    private long ackDue = 0; // when the delayed ACK has to go out, 0 if none is pending
+    private int segmentsReceived = 0;
+    private long firstArrival = 0, lastArrival = 0;
+    private int acksSent = 0;
+
+    /**
+     * @param size how many segments past the next expected one are buffered
+     */
+    public RXPReceiveWindow(int size) {
+        this.size = Math.max(1, size);
+    }
+
+    /**
+     * Takes in a data segment
+     *
+     * @param seqNum sequence number of the segment
+     * @param data
+     * @param last whether it is the LAST segment of the transfer
+     * @return true if an ACK should go out right away
+     */
+    public boolean accept(int seqNum, byte[] data, boolean last) {
+        segmentsReceived++;
+        lastArrival = System.nanoTime();
+        if (firstArrival == 0) {
+            firstArrival = lastArrival;
+        }
+        int offset = (seqNum - expected) & SEQ_MASK;
+        if (offset >= SEQ_HALF || offset >= size - ready.size() || isComplete()) {
+            return true; // already have it, or too far ahead, the sender needs to hear where we are
+        }
+        if (last) {
+            lastIndex = expected + offset;
+        }
+        if (offset > 0) {
+            outOfOrder.put(expected + offset, data);
+            return true; // gap
+        }
+
+        boolean filledGap = !outOfOrder.isEmpty();
+        ready.add(data);
+        expected++;
+        while (outOfOrder.containsKey(expected)) {
+            ready.add(outOfOrder.remove(expected));
+            expected++;
+        }
+
+        unacked++;
+        if (filledGap || unacked >= ACK_EVERY || (lastIndex >= 0 && expected > lastIndex)) {
+            return true;
+        }
+        if (ackDue == 0) {
+            ackDue = System.currentTimeMillis() + ACK_DELAY;
+        }
+        return false;
+    }
+
+    /**
+     * @return data of the next in-order segment, null if there is none yet
+     */
+    public byte[] poll() {
+        byte[] data = ready.poll();
+        if (data != null) {
+            polled++;
+        }
+        return data;
+    }
+
+    /**
+     * @return whether the LAST segment has been polled, i.e. the segment just polled was the trailer
+     */
+    public boolean isComplete() {
+        return lastIndex >= 0 && polled > lastIndex;
+    }
+
+    /**
+     * @return whether in-order segments are waiting to be polled
+     */
+    public boolean hasReady() {
+        return !ready.isEmpty();
+    }
+
+    /**
+     * The LAST segment is only acknowledged once it has been polled, by the LAST ACK
+     *
+     * @return sequence number of the next segment expected, which is what the ACK carries
+     */
+    public int ackNumber() {
+        if (lastIndex >= 0 && !isComplete()) {
+            return Math.min(expected, lastIndex) & SEQ_MASK;
+        }
+        return expected & SEQ_MASK;
+    }
+
+    /**
+     * @return segments past the ACK that can still be taken in, what the ACK advertises
+     */
+    public int advertisedWindow() {
+        return Math.min(RXPSendWindow.MAX_SIZE, size - ready.size());
+    }
+
+    /**
+     * @return whether the last ACK closed the window and draining has opened it since
+     */
+    public boolean windowUpdateDue() {
+        return lastAdvertised == 0 && advertisedWindow() > 0;
+    }
+
+    /**
+     * @return ms until the delayed ACK is due, -1 if none is pending
+     */
+    public long ackDelay() {
+        if (ackDue == 0) {
+            return -1;
+        }
+        return Math.max(0, ackDue - System.currentTimeMillis());
+    }
+
+    /**
+     * Called whenever an ACK goes out, it covers everything received so far
+     */
+    public void onAckSent() {
+        lastAdvertised = advertisedWindow();
+        unacked = 0;
+        ackDue = 0;
+        acksSent++;
+    }
+
+    /**
+     * @return whether any segment has come in
+     */
+    public boolean hasStarted() {
+        return segmentsReceived > 0;
+    }
+
+    public int getSegmentsReceived() {
+        return segmentsReceived;
+    }
+
+    public int getAcksSent() {
+        return acksSent;
+    }
+
+    /**
+     * @return ns between the first and the last segment that came in
+     */
+    public long getElapsed() {
+        return lastArrival - firstArrival;
+    }
+}
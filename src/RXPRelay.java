@@ -0,0 +1,234 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Lets a server act as a caching relay in front of another RXP server
+ * GETs are served from the working directory, names leading outside it are refused; a file that isn't there is
+ * fetched from upstream and sent on to the requester while it comes in, and kept for the next one. Requests for a
+ * file that is already being fetched follow that fetch instead of starting another, so upstream sees one GET per file
+ *
+ * Upstream GETs go through a small pool of RXPClients on their own ports, each keeps its session between fetches
+ * A fetch is written to name.part and renamed once it passed the digest check; a fetch that fails is dropped
+ * and the requesters following it fail with it
+ */
+public class RXPRelay {
+    private final ArrayBlockingQueue<RXPClient> upstream;
+    private final HashMap<String, Fetch> fetches = new HashMap<>();
+    private int hits = 0, misses = 0, coalesced = 0;
+
+    /**
+     * A file being fetched from upstream, in the order it comes in
+     */
+    private class Fetch extends Thread {
+        private final String fileName;
+        private final File part, target;
+        private long written = 0;
+        private boolean done = false, failed = false;
+
+        private Fetch(String fileName, File target) {
+            super("rxp-relay-fetch");
+            setDaemon(true);
+            this.fileName = fileName;
+            this.target = target;
+            this.part = new File(target.getPath() + ".part");
+        }
+
+        /**
+         * Used to thread, part of Thread, which was extended
+         */
+        @Override
+        public void run() {
+            boolean success = false;
+            RXPClient client = null;
+            try (OutputStream out = new FileOutputStream(part)) {
+                client = upstream.take();
+                OutputStream sink = new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        grow(len);
+                    }
+                };
+                if (!connect(client)) {
+                    System.out.println("Could not connect to upstream server");
+                } else {
+                    success = client.download(fileName, sink);
+                    if (!success && client.getClientState() == ClientState.CLOSED && written == 0) {
+                        // upstream closed the pooled session before the GET got through, try once on a new one
+                        success = connect(client) && client.download(fileName, sink);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                // relay is shutting down
+            } finally {
+                if (client != null) {
+                    upstream.add(client);
+                }
+            }
+            finish(success);
+        }
+
+        /**
+         * Connects the pooled client again if upstream closed its session, for example after it was idle too long
+         *
+         * @param client
+         * @return whether the client is connected
+         */
+        private boolean connect(RXPClient client) {
+            ClientState state = client.getClientState();
+            return state == ClientState.ESTABLISHED || state == ClientState.TICKET_SENT || client.setupRXP();
+        }
+
+        private synchronized void grow(long bytes) {
+            written += bytes;
+            notifyAll();
+        }
+
+        private void finish(boolean success) {
+            synchronized (RXPRelay.this) {
+                if (success) {
+                    success = RXPStorageWriter.moveIntoPlace(part, target);
+                }
+                if (!success) {
+                    part.delete();
+                }
+                fetches.remove(fileName);
+            }
+            System.out.println((success ? "Cached " : "Failed to fetch ") + fileName);
+            synchronized (this) {
+                done = true;
+                failed = !success;
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return the file so far, a read waits for the rest and ends once it's all there
+         * @throws IOException
+         */
+        private InputStream follow() throws IOException {
+            RandomAccessFile file = new RandomAccessFile(part, "r");
+            return new InputStream() {
+                private long position = 0;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    long available;
+                    try {
+                        available = waitFor(position);
+                    } catch (IOException e) {
+                        file.close();
+                        throw e;
+                    }
+                    if (available < 0) {
+                        file.close(); // the server reads a source to its end but doesn't close it
+                        return -1;
+                    }
+                    int n = file.read(b, off, (int) Math.min(len, available));
+                    if (n > 0) {
+                        position += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    file.close();
+                }
+            };
+        }
+
+        /**
+         * @return bytes past position that can be read now, -1 at the end of the file
+         * @throws IOException if the fetch failed
+         */
+        private synchronized long waitFor(long position) throws IOException {
+            while (written <= position && !done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (failed) {
+                throw new IOException("Fetching " + fileName + " failed");
+            }
+            return written > position ? written - position : -1;
+        }
+    }
+
+    /**
+     * @param upstreamIp address of the upstream server, or the NetEmu in front of it
+     * @param upstreamPort its port
+     * @param firstPort first of the ports the upstream connections bind to
+     * @param connections most files fetched at once, each on port firstPort + i
+     */
+    public RXPRelay(String upstreamIp, int upstreamPort, int firstPort, int connections) {
+        upstream = new ArrayBlockingQueue<>(connections);
+        for (int i = 0; i < connections; i++) {
+            upstream.add(new RXPClient(firstPort + i, upstreamIp, upstreamPort));
+        }
+    }
+
+    /**
+     * Where the segments of a GET come from
+     *
+     * @param fileName
+     * @return the cached file, or the fetch of it; null if the file can't be read or the fetch can't be started
+     */
+    public synchronized RXPUploadSource open(String fileName) {
+        Path path = RXPHelpers.insideWorkingDirectory(fileName);
+        if (path == null) {
+            System.out.println("Refusing " + fileName + ", it is outside the relay's directory");
+            return null;
+        }
+        File file = path.toFile();
+        if (file.isFile()) {
+            hits++;
+            System.out.printf("Relay: %d hits, %d fetched, %d joined a fetch\n", hits, misses, coalesced);
+            return RXPHelpers.openFile(file.getPath());
+        }
+        Fetch fetch = fetches.get(fileName);
+        if (fetch == null) {
+            misses++;
+            fetch = new Fetch(fileName, file);
+            try {
+                new FileOutputStream(fetch.part).close(); // so followers can open it before the fetch gets going
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            fetches.put(fileName, fetch);
+            fetch.start();
+        } else {
+            coalesced++;
+        }
+        System.out.printf("Relay: %d hits, %d fetched, %d joined a fetch\n", hits, misses, coalesced);
+        try {
+            return new RXPUploadSource(fetch.follow());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
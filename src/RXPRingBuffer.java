@@ -0,0 +1,145 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue between the stages of the server: any number of threads put in, one thread takes out
+ * Every slot carries a sequence number that says whose turn it is: a producer claims the slot by moving the shared tail
+ * with a compare-and-set and hands it over by bumping the sequence, and the consumer frees it again one lap later
+ * A single producer is just the uncontended case
+ *
+ * offer fails when the queue is full so the producer can hold back, put waits for room instead
+ * The consumer can wait for the next item with poll(timeout), producers wake it when it is parked
+ *
+ * @param <T> type of the items
+ */
+public class RXPRingBuffer<T> {
+    private static final long PRODUCER_BACKOFF = 50000; // ns a producer waits before trying a full queue again
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(); // next slot to fill
+    private volatile long head = 0; // next slot to take, only the consumer moves it
+    private volatile Thread waitingConsumer;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public RXPRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @param item
+     * @return false if the queue is full
+     */
+    public boolean offer(T item) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items.lazySet(slot, item);
+                    sequences.set(slot, position + 1);  // now the consumer's
+                    Thread consumer = waitingConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (sequence < position) {
+                return false;   // the consumer hasn't freed this slot from the last lap
+            }
+            // another producer got the slot first, try the next one
+        }
+    }
+
+    /**
+     * Waits for room when the queue is full
+     *
+     * @param item
+     * @throws InterruptedException
+     */
+    public void put(T item) throws InterruptedException {
+        while (!offer(item)) {
+            LockSupport.parkNanos(PRODUCER_BACKOFF);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Only to be called by the consumer
+     *
+     * @return next item, null if the queue is empty
+     */
+    public T poll() {
+        long position = head;
+        int slot = (int) position & mask;
+        if (sequences.get(slot) != position + 1) {
+            return null;
+        }
+        T item = items.get(slot);
+        items.lazySet(slot, null);
+        sequences.set(slot, position + capacity);   // free for the producer one lap later
+        head = position + 1;
+        return item;
+    }
+
+    /**
+     * Only to be called by the consumer, waits up to the timeout for an item
+     *
+     * @param timeout
+     * @param unit
+     * @return next item, null if none came in time
+     * @throws InterruptedException
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T item = poll();
+        if (item != null) {
+            return item;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // announce ourselves before looking again, so a producer either sees us or we see its item
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((item = poll()) == null) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, left);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return item;
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * @return how many more items fit, a snapshot that can be off while producers are racing
+     */
+    public int remainingCapacity() {
+        return (int) Math.max(0, capacity - (tail.get() - head));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
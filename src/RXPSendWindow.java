@@ -0,0 +1,215 @@
+/**
+ * Sending side of a transfer: which segments may be in flight and which have been acknowledged
+ * Segment i of a transfer (the trailer is the last one) goes out with sequence number i, wrapped to 16 bits,
+ * and the receiver's cumulative ACK carries the sequence number of the next segment it expects
+ *
+ * The window only keeps the numbers, whoever owns it builds, sends and resends the packets
+ *
+ * DUP_ACK_THRESHOLD duplicate ACKs mean the oldest segment was lost while later ones got through,
+ * so it is resent right away instead of after the socket timeout. Until everything that was in flight
+ * at that point is acknowledged, an ACK that only moves part of the way means the next hole is lost too
+ *
+ * The receiver advertises how many segments past its ACK it can buffer and no more than that are ever in flight;
+ * when it advertises 0 a single segment is let through after a timeout to find out when it opens again
+ *
+ * ACKs that cover a segment sent only once also measure the round trip time for the RXPPacer
+ */
+public class RXPSendWindow {
+    public static final int DEFAULT_SIZE = 32; // used until the receiver advertises its window
+    public static final int MAX_SIZE = 255;
+    public static final int DUP_ACK_THRESHOLD = 3;
+    private static final int SEQ_MASK = 0xFFFF;
+
+    private int total;
+    private final int size;
+    private int receiveWindow;
+    private boolean probe = false;
+    private int base = 0; // oldest segment not acknowledged yet
+    private int next = 0; // next segment to send for the first time
+    private int dupAcks = 0;
+    private int recover = -1; // next at the time of the last fast retransmit, -1 when not recovering
+    private boolean retransmitBase = false;
+    private int fastRetransmits = 0;
+
+    // send time and whether it was resent, for each segment in flight, indexed by segment modulo the ring size
+    private final long[] sentAt = new long[MAX_SIZE + 1];
+    private final boolean[] resent = new boolean[MAX_SIZE + 1];
+    private long rttSample = -1;
+
+    /**
+     * @param total segments in the transfer, trailer included, Integer.MAX_VALUE until it is known
+     * @param size most segments that may be unacknowledged at once
+     * @param receiveWindow window the receiver advertised before the transfer, 0 if it did not
+     */
+    public RXPSendWindow(int total, int size, int receiveWindow) {
+        this.total = total;
+        this.size = Math.max(1, size);
+        this.receiveWindow = receiveWindow > 0 ? receiveWindow : DEFAULT_SIZE;
+    }
+
+    /**
+     * For a transfer whose length only becomes known while it is sent, e.g. an upload read off a stream
+     *
+     * @param total segments in the transfer, trailer included
+     */
+    public void setTotal(int total) {
+        this.total = total;
+    }
+
+    /**
+     * @return whether another new segment fits in the window
+     */
+    public boolean canSend() {
+        if (next >= total) {
+            return false;
+        }
+        if (probe) {
+            return true;
+        }
+        return next - base < Math.min(size, receiveWindow);
+    }
+
+    /**
+     * @return index of the next new segment, which counts as sent from here on
+     */
+    public int nextToSend() {
+        probe = false;
+        sentAt[next % sentAt.length] = System.nanoTime();
+        resent[next % resent.length] = false;
+        return next++;
+    }
+
+    /**
+     * A segment in flight went out again, so its ACK can't tell which copy it answers
+     *
+     * @param index
+     */
+    public void onResent(int index) {
+        resent[index % resent.length] = true;
+    }
+
+    /**
+     * Slides the window up to the cumulative ACK
+     *
+     * @param ackNum sequence number of the next segment the receiver expects
+     * @param window segments past ackNum the receiver can take
+     * @return number of segments newly acknowledged, 0 for a duplicate ACK, -1 for an ACK outside the window
+     */
+    public int onAck(int ackNum, int window) {
+        int acked = (ackNum - base) & SEQ_MASK;
+        if (acked > next - base) {
+            return -1;
+        }
+        boolean windowUpdate = window != receiveWindow;
+        receiveWindow = window;
+        if (acked == 0) {
+            if (windowUpdate) {
+                return 0; // only the window moved, not a sign of loss
+            }
+            if (base < next && ++dupAcks == DUP_ACK_THRESHOLD && recover < 0) {
+                recover = next;
+                retransmitBase = true;
+            }
+            return 0;
+        }
+        base += acked;
+        dupAcks = 0;
+        int newest = base - 1;
+        rttSample = resent[newest % resent.length] ? -1 : System.nanoTime() - sentAt[newest % sentAt.length];
+        if (recover >= 0) {
+            if (base < recover) {
+                retransmitBase = true; // partial ACK, the segment now at the base went missing as well
+            } else {
+                recover = -1;
+            }
+        }
+        return acked;
+    }
+
+    /**
+     * An ACK that rode along on a data segment going the other way: it slides the window like any other,
+     * but the same ACK number again only means more data came, not that a segment went missing,
+     * and it never covers the trailer, which is left to the LAST ACK
+     *
+     * @param ackNum sequence number of the next segment the receiver expects
+     * @param window segments past ackNum the receiver can take
+     * @return number of segments newly acknowledged, 0 if none, -1 for an ACK outside the window
+     */
+    public int onPiggybackedAck(int ackNum, int window) {
+        int acked = (ackNum - base) & SEQ_MASK;
+        if (acked > next - base) {
+            return -1;
+        }
+        acked = Math.min(acked, total - 1 - base);
+        if (acked <= 0) {
+            receiveWindow = window;
+            return 0;
+        }
+        return onAck(seqOf(base + acked), window);
+    }
+
+    /**
+     * Whether the oldest unacknowledged segment should be resent now, asks only once per loss
+     *
+     * @return
+     */
+    public boolean fastRetransmit() {
+        if (!retransmitBase || base >= next) {
+            retransmitBase = false;
+            return false;
+        }
+        retransmitBase = false;
+        fastRetransmits++;
+        return true;
+    }
+
+    /**
+     * The socket timed out, everything in flight is about to be resent so recovery starts over
+     */
+    public void onTimeout() {
+        dupAcks = 0;
+        recover = -1;
+        retransmitBase = false;
+        probe = base == next && receiveWindow == 0;
+    }
+
+    /**
+     * @return round trip time measured by the last ACK that moved the window in ns, -1 if it measured none
+     */
+    public long getRttSample() {
+        return rttSample;
+    }
+
+    public int getFastRetransmits() {
+        return fastRetransmits;
+    }
+
+    /**
+     * @return oldest unacknowledged segment
+     */
+    public int getBase() {
+        return base;
+    }
+
+    /**
+     * @return one past the newest segment sent so far
+     */
+    public int getNext() {
+        return next;
+    }
+
+    /**
+     * @return whether every segment has been acknowledged
+     */
+    public boolean isComplete() {
+        return base >= total;
+    }
+
+    /**
+     * @param index segment of the transfer
+     * @return sequence number it is sent with
+     */
+    public static int seqOf(int index) {
+        return index & SEQ_MASK;
+    }
+}
@@ -1,16 +1,31 @@
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.*;
-import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * RXP Server class
+ * Either runs on its own and owns the socket, or is one connection of an RXPServerDispatcher,
+ * in which case its packets are handed over by the dispatcher and it shares the dispatcher's socket
  */
 public class RXPServer extends Thread {
     private static final int PACKET_SIZE = 512;
     private static final int DATA_SIZE = 496;
     private static final int MAX_SEQ_NUM = (int) 0xFFFF;
+    private static final int SOCKET_TIMEOUT = 5000;
+    private static final int IDLE_POLL = 500; // socket timeout between requests, so the timer wheel keeps turning
+    private static final long WHEEL_TICK = 100;
+    private static final long PROBE_INTERVAL = 5000;
+    private static final int MAX_PROBES = 3;
+    private static final int INBOX_SIZE = 256;
+    private static final int MAX_HANDSHAKE_WAITS = 6; // a dispatched connection gives up on a silent client
+    private static final int DRAIN_POLL = 2; // socket timeout while segments wait for the storage writer
+    private static final int REPORT_POLL = 100; // socket timeout while a distribution runs
 
     private DatagramSocket serverSocket;
     private DatagramPacket sendPacket, receivePacket;
@@ -20,13 +35,37 @@ public class RXPServer extends Thread {
 
     private ServerState state;
     private int seqNum, ackNum;
-    private ArrayList<byte[]> bytesReceived;
-    private byte[] fileData;
-
-    private HashMap<Integer, String> challengeMap = new HashMap<>();
-
-    private boolean closeReq = false;
-    private boolean isBusy = false;
+    private RXPStorageWriter.Sink uploadSink;
+    private int segmentBase;
+    private RXPDigest receiveDigest;
+    private byte[] receiveTrailer;
+    private ArrayList<int[]> suspectRanges = new ArrayList<>();
+    private String pendingRepair; // upload held back until its failing ranges are sent again
+    private Map<String, RXPDistributor> distributions = new ConcurrentHashMap<>(); // the dispatcher's when dispatched
+    private RXPRelay relay; // set when GETs the working directory can't serve go upstream
+    private RXPChunkStore chunkStore; // set when uploads are kept deduplicated
+
+    private RXPChallengeTable challengeTable = new RXPChallengeTable();
+    private RXPTicket tickets = new RXPTicket();
+    private RXPPacer pacer = new RXPPacer();
+    private RXPBufferTuner bufferTuner;
+
+    // set when the connection belongs to a dispatcher, which fills the inbox from the shared socket
+    private RXPRingBuffer<DatagramPacket> inbox;
+    private RXPTransmitScheduler scheduler; // takes the data segments, so the connections take turns on the socket
+    private int timeout = SOCKET_TIMEOUT;
+
+    private volatile boolean closeReq = false;
+    private volatile boolean isBusy = false;
+
+    // keep-alive and idle timeout of the established session
+    private RXPTimerWheel timerWheel = new RXPTimerWheel(WHEEL_TICK);
+    private RXPTimerWheel.Timer keepAliveTimer, idleTimer;
+    private long keepAliveInterval = 15 * 1000;
+    private long idleTimeout = 5 * 60 * 1000;
+    private volatile long lastHeard, lastRequest;
+    private volatile int probesSent;
+    private volatile boolean peerDead, sessionIdle;
 
     /**
      * Constructor
@@ -36,7 +75,6 @@ public class RXPServer extends Thread {
      * @param clientNetPort
      */
     public RXPServer(int serverPort, String clientIpAddress, int clientNetPort) {
-        bytesReceived = new ArrayList<>();
         this.serverPort = serverPort;
         this.clientNetPort = clientNetPort;
         try {
@@ -50,23 +88,80 @@ public class RXPServer extends Thread {
         state = ServerState.CLOSED;
     }
 
+    /**
+     * Constructor for one connection of a dispatcher
+     * The challenge table, ticket secret and timer wheel are the dispatcher's, so they are shared by every connection
+     *
+     * @param dispatcher
+     * @param socket socket of the dispatcher's shard that owns the connection
+     * @param scheduler transmit scheduler of that shard
+     * @param bufferTuner sizes the buffers of that shard's socket
+     * @param client address the client's packets come from, replies go back there
+     */
+    RXPServer(RXPServerDispatcher dispatcher, DatagramSocket socket, RXPTransmitScheduler scheduler,
+              RXPBufferTuner bufferTuner, InetSocketAddress client) {
+        this.serverSocket = socket;
+        this.serverPort = dispatcher.getServerPort();
+        this.clientIpAddress = client.getAddress();
+        this.clientNetPort = client.getPort();
+        this.challengeTable = dispatcher.getChallengeTable();
+        this.tickets = dispatcher.getTickets();
+        this.timerWheel = dispatcher.getTimerWheel();
+        this.keepAliveInterval = dispatcher.getKeepAliveInterval();
+        this.idleTimeout = dispatcher.getIdleTimeout();
+        this.pacer.setRateCap(dispatcher.getRateCap());
+        this.distributions = dispatcher.getDistributions();
+        this.relay = dispatcher.getRelay();
+        this.chunkStore = dispatcher.getChunkStore();
+        this.pacer.setGlobalCapped(false); // the scheduler applies the server-wide cap
+        this.scheduler = scheduler;
+        this.bufferTuner = bufferTuner;
+        this.inbox = new RXPRingBuffer<>(INBOX_SIZE);
+        seqNum = 0;
+        ackNum = 0;
+        state = ServerState.CLOSED;
+    }
+
     /**
      * Used to thread, part of Thread, which was extended
+     * A dispatched connection serves one session and then ends, the dispatcher starts a new one for the next SYN
      */
     @Override
     public void run() {
+        if (inbox != null) {
+            connect();
+            return;
+        }
         while (true) {
             connect();
         }
     }
 
+    /**
+     * Hands a packet from the dispatcher to this connection
+     *
+     * @param packet
+     * @return false if the connection is too far behind and the packet was dropped
+     */
+    boolean deliver(DatagramPacket packet) {
+        return inbox.offer(packet);
+    }
+
+    /**
+     * @return whether a session is established
+     */
+    public boolean isEstablished() {
+        return state == ServerState.ESTABLISHED;
+    }
+
     /**
      * Creates the server socket
      */
     public void createSocket() {
         try {
             serverSocket = new DatagramSocket(serverPort, serverIpAddress);
-            serverSocket.setSoTimeout(5000);
+            bufferTuner = new RXPBufferTuner(serverSocket);
+            setTimeout(SOCKET_TIMEOUT);
         } catch (SocketException e) {
             e.printStackTrace();
         }
@@ -79,12 +174,13 @@ public class RXPServer extends Thread {
         byte[] arr = new byte[PACKET_SIZE];
         receivePacket = new DatagramPacket(arr, PACKET_SIZE);
         boolean hashAckSent = false;
+        int handshakeWaits = 0;
 
         // handshake
         while (state == ServerState.CLOSED || state == ServerState.CHALLENGE_SENT) {
             try {
                 // Receive Packet
-                serverSocket.receive(receivePacket);
+                receive(receivePacket);
                 System.out.println("Packet received");
 
                 // Get Header of Packet
@@ -96,6 +192,12 @@ public class RXPServer extends Thread {
                     continue;
                 }
 
+                // 0-RTT: SYN carrying a resumption ticket and the first GET/POST, skip the challenge
+                if (receiveHeader.isSYN() && (receiveHeader.isGET() || receiveHeader.isPOST())
+                        && resumeSession(receivePacket)) {
+                    break;
+                }
+
                 // HANDSHAKE PT 1: Receive SYN, send SYN+ACK and challenge string
                 if (receiveHeader.isSYN() && !receiveHeader.isACK()) {
                     sendChallenge(receiveHeader);
@@ -112,6 +214,10 @@ public class RXPServer extends Thread {
                     break;
                 }
 
+                if (inbox != null && ++handshakeWaits >= MAX_HANDSHAKE_WAITS) {
+                    System.out.println("Client never completed the handshake");
+                    return;
+                }
                 if (state == ServerState.CLOSED) {
                     System.out.println("Waiting for client...");
                 } else {
@@ -122,9 +228,12 @@ public class RXPServer extends Thread {
             }
         }
 
+        startSessionTimers();
         while (state == ServerState.ESTABLISHED) {
             try {
-                serverSocket.receive(receivePacket);
+                setTimeout(IDLE_POLL);
+                receive(receivePacket);
+                setTimeout(SOCKET_TIMEOUT);
                 System.out.println("Packet received");
 
                 //Checksum validation
@@ -139,44 +248,39 @@ public class RXPServer extends Thread {
 
                 RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
 
-                if (receiveHeader.isGET()) {
-                    isBusy = true;
-                    if (sendFile(receivePacket)) {
-                        System.out.println("Sent file!");
-                        if (closeReq) {
-                            serverDisconnect();
-                        }
-                    } else {
-                        System.out.println("Failed to send file!");
-                    }
-                    seqNum = 0;
-                    ackNum = 0;
-                    isBusy = false;
+                // a resuming client retransmits its SYN if our first reply was lost
+                byte[] request = RXPHelpers.getData(receivePacket);
+                if (receiveHeader.isSYN() && tickets.verify(request, clientRXPPort)) {
+                    request = Arrays.copyOfRange(request, RXPTicket.TICKET_LENGTH, request.length);
                 }
 
-                if (receiveHeader.isPOST()) {
-                    isBusy = true;
-                    if (receiveFile(receivePacket)) {
-                        System.out.println("Received file!");
-                        if (closeReq) {
-                            serverDisconnect();
-                        }
-                    } else {
-                        System.out.println("Failed to receive file!");
-                    }
-                    seqNum = 0;
-                    ackNum = 0;
-                    isBusy = false;
-                }
+                handleRequest(receiveHeader, request);
 
                 if (receiveHeader.isFIN() && !receiveHeader.isACK()) {
                     respondToCloseReq();
                 }
             } catch (SocketTimeoutException s) {
-                System.out.println("Timed out");
+                // quiet session, the keep-alive timer decides whether the client is still there
             } catch (IOException e) {
                 e.printStackTrace();
             }
+
+            timerWheel.advance();
+            if (state == ServerState.ESTABLISHED && peerDead) {
+                System.out.println("Client stopped answering keep-alives, dropping session");
+                state = ServerState.CLOSED;
+            } else if (state == ServerState.ESTABLISHED && sessionIdle) {
+                System.out.println("Session was idle too long, closing");
+                serverDisconnect();
+            } else if (state == ServerState.ESTABLISHED && closeReq) {
+                serverDisconnect();
+            }
+        }
+        stopSessionTimers();
+        try {
+            setTimeout(SOCKET_TIMEOUT);
+        } catch (SocketException e) {
+            e.printStackTrace();
         }
 
         if (state == ServerState.CLOSE_WAIT) {
@@ -185,16 +289,267 @@ public class RXPServer extends Thread {
         }
     }
 
+    /**
+     * Carries out a GET or POST from the client
+     *
+     * @param receiveHeader
+     * @param request data of the GET/POST: filename, optionally followed by a range
+     */
+    private void handleRequest(RXPHeader receiveHeader, byte[] request) {
+        if (receiveHeader.isGET() && receiveHeader.isLAST() && !receiveHeader.isACK()) {
+            isBusy = true;
+            if (joinDistribution(request)) {
+                System.out.println("Distributed file!");
+                if (closeReq) {
+                    serverDisconnect();
+                }
+            } else {
+                System.out.println("Failed to distribute file!");
+            }
+            seqNum = 0;
+            ackNum = 0;
+            isBusy = false;
+        } else if (receiveHeader.isGET() && receiveHeader.isPOST()) {
+            isBusy = true;
+            if (exchangeFiles(request, receiveHeader.getWindow())) {
+                System.out.println("Exchanged files!");
+                if (closeReq) {
+                    serverDisconnect();
+                }
+            } else {
+                System.out.println("Failed to exchange files!");
+            }
+            seqNum = 0;
+            ackNum = 0;
+            isBusy = false;
+        } else if (receiveHeader.isGET()) {
+            isBusy = true;
+            if (sendFile(request, receiveHeader.getWindow())) {
+                System.out.println("Sent file!");
+                if (closeReq) {
+                    serverDisconnect();
+                }
+            } else {
+                System.out.println("Failed to send file!");
+            }
+            seqNum = 0;
+            ackNum = 0;
+            isBusy = false;
+        } else if (receiveHeader.isPOST()) {
+            isBusy = true;
+            if (receiveFile(request)) {
+                System.out.println("Received file!");
+                if (closeReq) {
+                    serverDisconnect();
+                }
+            } else {
+                System.out.println("Failed to receive file!");
+            }
+            seqNum = 0;
+            ackNum = 0;
+            isBusy = false;
+        }
+
+        if (receiveHeader.isGET() || receiveHeader.isPOST()) {
+            lastRequest = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Received a SYN with a resumption ticket in front of a GET/POST
+     * If the ticket checks out the connection is established right away and the request carried out,
+     * otherwise the SYN is treated like any other and the client gets a challenge
+     *
+     * @param receivePacket
+     * @return whether the session was resumed
+     */
+    private boolean resumeSession(DatagramPacket receivePacket) {
+        RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
+        byte[] data = RXPHelpers.getData(receivePacket);
+
+        if (!tickets.verify(data, receiveHeader.getSource())) {
+            System.out.println("Rejected resumption ticket");
+            return false;
+        }
+
+        System.out.println("Resumed session from ticket");
+        clientRXPPort = receiveHeader.getSource();
+        seqNum = 0;
+        ackNum = 0;
+        state = ServerState.ESTABLISHED;
+        handleRequest(receiveHeader, Arrays.copyOfRange(data, RXPTicket.TICKET_LENGTH, data.length));
+        return true;
+    }
+
+    /**
+     * Receives the next packet, answering keep-alive probes from the client on the way
+     * Anything that arrives from the client of the established session counts as a sign of life
+     *
+     * @param packet
+     * @throws IOException
+     */
+    private void receive(DatagramPacket packet) throws IOException {
+        while (true) {
+            receiveFromSocketOrInbox(packet);
+            if (state != ServerState.ESTABLISHED || !RXPHelpers.isValidPorts(packet, serverPort, clientRXPPort)
+                    || !RXPHelpers.passChecksum(packet)) {
+                return;
+            }
+            lastHeard = System.currentTimeMillis();
+            probesSent = 0;
+
+            if (!RXPHelpers.getHeader(packet).isControl()) {
+                return;
+            }
+            if (RXPHelpers.getControlOperation(packet) == RXPHeader.CTRL_KEEPALIVE) {
+                serverSocket.send(RXPHelpers.prepareControlPacket(clientIpAddress, clientNetPort, serverPort,
+                        clientRXPPort, RXPHeader.CTRL_KEEPALIVE_ACK));
+            }
+        }
+    }
+
+    /**
+     * Reads the next packet off the socket, or out of the inbox when a dispatcher owns the socket
+     *
+     * @param packet
+     * @throws IOException SocketTimeoutException once the timeout passes without a packet
+     */
+    private void receiveFromSocketOrInbox(DatagramPacket packet) throws IOException {
+        if (inbox == null) {
+            serverSocket.receive(packet);
+            return;
+        }
+        DatagramPacket received;
+        try {
+            received = inbox.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new SocketTimeoutException("Interrupted");
+        }
+        if (received == null) {
+            throw new SocketTimeoutException("Receive timed out");
+        }
+        System.arraycopy(received.getData(), received.getOffset(), packet.getData(), packet.getOffset(), received.getLength());
+        packet.setLength(received.getLength());
+        packet.setSocketAddress(received.getSocketAddress());
+    }
+
+    /**
+     * Sets how long a receive waits; only touches the socket when this server owns it
+     *
+     * @param millis
+     * @throws SocketException
+     */
+    private void setTimeout(int millis) throws SocketException {
+        timeout = millis;
+        if (inbox == null) {
+            serverSocket.setSoTimeout(millis);
+        }
+    }
+
+    /**
+     * Starts the keep-alive and idle timers once a session is established
+     */
+    private void startSessionTimers() {
+        long now = System.currentTimeMillis();
+        lastHeard = now;
+        lastRequest = now;
+        probesSent = 0;
+        peerDead = false;
+        sessionIdle = false;
+        keepAliveTimer = timerWheel.schedule(keepAliveInterval, this::onKeepAliveTimer);
+        idleTimer = timerWheel.schedule(idleTimeout, this::onIdleTimer);
+    }
+
+    private void stopSessionTimers() {
+        if (keepAliveTimer != null) keepAliveTimer.cancel();
+        if (idleTimer != null) idleTimer.cancel();
+    }
+
+    /**
+     * The client has been quiet for the keep-alive interval: probe it, and give up after MAX_PROBES unanswered probes
+     * Timers are not reset on every packet; if the client was heard from since, the timer is just pushed back
+     */
+    private void onKeepAliveTimer() {
+        long silence = System.currentTimeMillis() - lastHeard;
+        if (probesSent == 0 && silence < keepAliveInterval) {
+            keepAliveTimer = timerWheel.schedule(keepAliveInterval - silence, this::onKeepAliveTimer);
+            return;
+        }
+        if (probesSent >= MAX_PROBES) {
+            peerDead = true;
+            return;
+        }
+
+        probesSent++;
+        System.out.println("Sending keep-alive probe");
+        try {
+            serverSocket.send(RXPHelpers.prepareControlPacket(clientIpAddress, clientNetPort, serverPort,
+                    clientRXPPort, RXPHeader.CTRL_KEEPALIVE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        keepAliveTimer = timerWheel.schedule(PROBE_INTERVAL, this::onKeepAliveTimer);
+    }
+
+    /**
+     * No GET or POST for the idle timeout: the session is closed so it doesn't hold on to the server
+     */
+    private void onIdleTimer() {
+        long idle = System.currentTimeMillis() - lastRequest;
+        if (idle < idleTimeout) {
+            idleTimer = timerWheel.schedule(idleTimeout - idle, this::onIdleTimer);
+        } else {
+            sessionIdle = true;
+        }
+    }
+
+    /**
+     * @param keepAliveInterval how long the client may stay silent before it is probed, in ms
+     */
+    public void setKeepAliveInterval(long keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    /**
+     * @param idleTimeout how long a session may go without a GET or POST before it is closed, in ms
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @param relay fetches the files GETs ask for that aren't in the working directory, null to serve only those that are
+     */
+    public void setRelay(RXPRelay relay) {
+        this.relay = relay;
+    }
+
+    /**
+     * @param chunkStore keeps uploads deduplicated, null to store them as they come
+     */
+    public void setChunkStore(RXPChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+    }
+
+    /**
+     * @param rateCap most bytes/s a transfer to the client may send, 0 for no cap
+     */
+    public void setRateCap(long rateCap) {
+        pacer.setRateCap(rateCap);
+    }
+
     /**
      * Terminate the connection to the client.
-     * Called in the application level
+     * Called in the application level, the server's own thread closes the session once it is not busy
      */
     public void terminate() {
+        if (state != ServerState.ESTABLISHED) {
+            System.out.println("No connection to terminate");
+            return;
+        }
+        closeReq = true;
         if (isBusy) {
-            closeReq = true;
             System.out.println("Waiting for transfer to finish!");
-        } else {
-            serverDisconnect();
         }
     }
 
@@ -209,8 +564,7 @@ public class RXPServer extends Thread {
         sendHeader.setFlags(true, true, false, false, false, false); // ACK, SYN
 
         // Set up the data
-        String challenge = UUID.randomUUID().toString().replaceAll("-", "") + UUID.randomUUID().toString().replaceAll("-", "");
-        challengeMap.put(receiveHeader.getSource(), challenge);
+        String challenge = challengeTable.challengeFor(receiveHeader.getSource());
 
         //System.out.println("Source port: " + receiveHeader.getSource());
         //System.out.println("Challenge " + challenge + " was sent");
@@ -242,24 +596,32 @@ public class RXPServer extends Thread {
         int sendAckNum = (ackNum + 1) % MAX_SEQ_NUM;
 
         // Check Hash
-        String serverChallenge = challengeMap.get(receiveHeader.getSource());
+        String serverChallenge = challengeTable.find(receiveHeader.getSource());
+        if (serverChallenge == null) {
+            System.out.println("No challenge was sent to this client, or it expired");
+            return;
+        }
 
-        System.out.println("Challenge: " + serverChallenge + " was taken from hashmap");
+        System.out.println("Challenge: " + serverChallenge + " was taken from the challenge table");
 
         byte[] serverHash = RXPHelpers.getHash(serverChallenge.getBytes());
 
         // Confirmed match
         if (Arrays.equals(clientHash, serverHash)) {
-            // Send ACK packet
+            // Send ACK packet, carrying a ticket the client can use to skip this handshake next time
             RXPHeader sendHeader = RXPHelpers.initHeader(serverPort, clientRXPPort, seqNum, sendAckNum);
             sendHeader.setFlags(true, false, false, false, false, false); // ACK
-            byte[] sendData = new byte[DATA_SIZE];
+            byte[] sendData = tickets.issue(serverPort, receiveHeader.getSource());
+            if (sendData == null) {
+                sendData = new byte[DATA_SIZE];
+            }
             sendHeader.setChecksum(sendData);
             sendHeader.setSegmentLength(sendData.length);
             sendPacket = RXPHelpers.preparePacket(clientIpAddress, clientNetPort, sendHeader, sendData);
             serverSocket.send(sendPacket);
             state = ServerState.ESTABLISHED;
             clientRXPPort = receiveHeader.getSource();
+            challengeTable.remove(clientRXPPort);
         } else {
             // Refuse the connection
             System.out.println("Incorrect Auth");
@@ -267,44 +629,180 @@ public class RXPServer extends Thread {
     }
 
     /**
-     * starts and carries out upload transfer
+     * Where the segments of a GET come from
+     *
+     * @param fileString
+     * @return null if the file can't be read
      */
-    private boolean sendFile(DatagramPacket receivePacket) {
-        // Get received packet info
-        RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
-        byte[] filePath = RXPHelpers.getData(receivePacket); //get the data from the packet
+    private RXPUploadSource openSource(String fileString) {
+        File manifest = chunkStore != null ? chunkStore.manifest(fileString) : null;
+        if (chunkStore != null && (fileString.endsWith(RXPChunkStore.NEED_EXTENSION) || manifest != null)) {
+            return openFromChunkStore(fileString, manifest);
+        } else if (relay != null) {
+            return relay.open(fileString);
+        } else if (Files.isDirectory(Paths.get(fileString))) {
+            // a directory goes out as its tree, read as it is sent; only one below the working directory
+            Path root = RXPHelpers.insideWorkingDirectory(fileString);
+            if (root == null) {
+                System.out.println("Refusing " + fileString + ", it is outside the working directory");
+                return null;
+            }
+            try {
+                return new RXPUploadSource(RXPTree.stream(root));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return RXPHelpers.openFile(fileString);
+    }
 
-        String fileString = RXPHelpers.byteArrToStr(filePath);
+    /**
+     * The hashes of some blocks of a file, for a client narrowing down which blocks failed its check
+     * A file on disk is hashed on several threads, a stream in order
+     *
+     * @param fileString
+     * @param firstLeaf
+     * @param count
+     * @return null if the file can't be read
+     */
+    private RXPUploadSource openLeaves(String fileString, int firstLeaf, int count) {
+        RXPUploadSource file = openSource(fileString);
+        if (file == null) {
+            return null;
+        }
+        boolean randomAccess = file.getTotal() >= 0;
+        // the range comes from the client, only blocks of the file are hashed; a stream ends where it ends
+        firstLeaf = Math.max(0, firstLeaf);
+        count = Math.max(0, count);
+        if (randomAccess) {
+            int blocks = RXPDigest.blockCount(file.getTotal());
+            firstLeaf = Math.min(firstLeaf, blocks);
+            count = Math.min(count, blocks - firstLeaf);
+        }
+        try {
+            return new RXPUploadSource(RXPDigest.leaves(i -> {
+                byte[] segment = file.segment(i);
+                if (!randomAccess) {
+                    file.release(i);
+                }
+                return segment;
+            }, firstLeaf, count, randomAccess));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Where the segments of a GET served by the chunk store come from: the bitmap of the chunks an uploaded manifest
+     * still needs, or the file a stored manifest stands for
+     *
+     * @param fileString
+     * @param manifest kept for the file, null for the bitmap
+     * @return null if there is no such manifest
+     */
+    private RXPUploadSource openFromChunkStore(String fileString, File manifest) {
+        try {
+            if (fileString.endsWith(RXPChunkStore.NEED_EXTENSION)) {
+                File recipe = new File(RXPStorageWriter.storedName(RXPChunkStore.baseName(fileString)
+                        + RXPChunkStore.RECIPE_EXTENSION));
+                return recipe.isFile() ? new RXPUploadSource(chunkStore.need(recipe)) : null;
+            }
+            return new RXPUploadSource(chunkStore.open(manifest));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * starts and carries out upload transfer
+     * Sends the requested segments, or the whole file, followed by the LAST packet carrying the digest trailer
+     * Never has more segments in flight than the client's receive window
+     *
+     * @param filePath data of the GET: filename, optionally followed by a range
+     * @param receiveWindow window the client advertised in its GET
+     */
+    private boolean sendFile(byte[] filePath, int receiveWindow) {
+        String fileString = RXPHelpers.requestedFileName(filePath);
+        int[] range = RXPHelpers.requestedRange(filePath);
 
         System.out.println(fileString);
 
-        fileData = RXPHelpers.fileToBytes(fileString);
+        RXPUploadSource source;
+        if (fileString.endsWith(RXPDigest.LEAVES_EXTENSION) && range != null) {
+            // the range is of blocks whose hashes are asked for, what goes out is those hashes
+            source = openLeaves(fileString.substring(0, fileString.length() - RXPDigest.LEAVES_EXTENSION.length()),
+                    range[0], range[1]);
+            range = null;
+        } else {
+            source = openSource(fileString);
+        }
 
-        if (fileData == null) {
+        if (source == null) {
             return false;
         }
+        try {
+            return sendSource(source, range, receiveWindow);
+        } finally {
+            source.close();
+        }
+    }
 
-        int numPackets = (fileData.length / DATA_SIZE);
-        if (fileData.length % DATA_SIZE > 0) numPackets += 1; //1 extra packet if there's leftover data
+    /**
+     * sends the segments of an open source, see sendFile
+     *
+     * @param source
+     * @param range {start, count} the client asked for, null for the whole file
+     * @param receiveWindow
+     */
+    private boolean sendSource(RXPUploadSource source, int[] range, int receiveWindow) {
+        RXPHeader receiveHeader;
+
+        int start = 0;
+        int count = Integer.MAX_VALUE;
+        if (range != null) {
+            // the range comes from the client, keep it inside the file so start + count can't overflow
+            int end = source.getTotal() >= 0 ? source.getTotal() : Integer.MAX_VALUE;
+            start = Math.min(Math.max(0, range[0]), end);
+            count = Math.min(Math.max(0, range[1]), end - start);
+            System.out.printf("Resending segments %d to %d\n", start, start + count - 1);
+        }
+        // a file being relayed only knows where it ends once it got there, the trailer goes last either way
+        int numPackets = source.getTotal() >= 0 ? packetCount(source, start, count) : Integer.MAX_VALUE;
 
-        int currPacket = 0;
-        DatagramPacket sendingPacket;
+        // up to a window of segments in flight, the client's cumulative ACKs slide it along
+        RXPSendWindow window = new RXPSendWindow(numPackets, RXPSendWindow.MAX_SIZE, receiveWindow);
+        int acksReceived = 0;
+        pacer.restart();
+        long startTime = System.nanoTime();
 
-        while (currPacket < numPackets) {
-            sendingPacket = createDataPacket(currPacket);
+        while (!window.isComplete()) {
+            long paceWait = 0;
             try {
-                System.out.println("Created: " + seqNum + ", " + ackNum);
-
-                System.out.println("Sending: " + RXPHelpers.getHeader(sendingPacket).getSeqNum() + ", " + RXPHelpers.getHeader(sendingPacket).getAckNum());
-
-                serverSocket.send(sendingPacket);
+                while (window.canSend()) {
+                    // rather than sleep until the pacer lets the next segment go, read ACKs in the meantime
+                    paceWait = pacer.delay(PACKET_SIZE);
+                    if (paceWait > 0) {
+                        break;
+                    }
+                    DatagramPacket packet = createTransferPacket(source, start, count, window.getNext());
+                    if (numPackets == Integer.MAX_VALUE && source.getTotal() >= 0) {
+                        numPackets = packetCount(source, start, count);
+                        window.setTotal(numPackets);
+                    }
+                    pacer.onSend(packet.getLength());
+                    window.nextToSend();
+                    sendSegment(packet);
+                }
 
-                System.out.println("Sent");
-                serverSocket.receive(receivePacket);
+                setTimeout(paceWait > 0 ? (int) Math.max(1, paceWait / 1000000) : SOCKET_TIMEOUT);
+                receive(receivePacket);
                 receiveHeader = RXPHelpers.getHeader(receivePacket);
 
-                System.out.println("Received: " + receiveHeader.getSeqNum() + ", " + receiveHeader.getAckNum());
-
                 if (!RXPHelpers.passChecksum(receivePacket)) {   //got a corrupted packet
                     System.out.println("Dropping invalid packet");
                     continue;
@@ -313,100 +811,181 @@ public class RXPServer extends Thread {
                     System.out.println("Dropping packet of incorrect ports");
                     continue;
                 }
+                if (!receiveHeader.isACK() || receiveHeader.isControl()) {
+                    continue;   // e.g. the GET again, the client resends it until the first segment shows up
+                }
+                acksReceived++;
 
-                if (receiveHeader.isACK() && receiveHeader.isLAST()) {
+                if (receiveHeader.isLAST()) {
                     break;
                 }
-
-                if (seqNum == receiveHeader.getAckNum()) { //getting ack for previous packet
-                    System.out.println("Already got this ack.");
-                    continue;
+                int acked = window.onAck(receiveHeader.getAckNum(), receiveHeader.getWindow());
+                if (acked > 0) {
+                    pacer.onAck(acked * DATA_SIZE, window.getRttSample());
+                    source.release(start + window.getBase());
                 }
-
-                if (seqNum + 1 == receiveHeader.getAckNum()) {  //got the ack for this packet
-                    System.out.println("Correct ack");
-                    seqNum = (receiveHeader.getSeqNum() + 1) % MAX_SEQ_NUM;
-                    ackNum = receiveHeader.getAckNum();
-                    currPacket++;
+                if (window.fastRetransmit()) {
+                    resendPaced(window, createTransferPacket(source, start, count, window.getBase()), window.getBase());
                 }
             } catch (SocketTimeoutException s) {
+                if (paceWait > 0) {
+                    continue;   // only waited for the pacer
+                }
                 System.out.println("Timeout, resending..");
+                window.onTimeout();
+                try {
+                    for (int packetNum = window.getBase(); packetNum < window.getNext(); packetNum++) {
+                        resendPaced(window, createTransferPacket(source, start, count, packetNum), packetNum);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
             } catch (IOException e) {
                 e.printStackTrace();
                 return false;
             }
         }
-        fileData = null;
+        try {
+            setTimeout(SOCKET_TIMEOUT);
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        bufferTuner.onTransfer((long) numPackets * DATA_SIZE, System.nanoTime() - startTime, pacer.getSmoothedRtt());
+        System.out.printf("Sent %d segments, %d ACKs came back, %d fast retransmits, paced at %d KB/s, RTT %.2f ms, %s\n",
+                numPackets, acksReceived, window.getFastRetransmits(), pacer.getRate() / 1024, pacer.getSmoothedRtt() / 1e6,
+                bufferTuner.describe());
         return true;
     }
 
     /**
-     * creates packets of indexed bytes of file
+     * packets in a transfer of up to count segments from start, trailer included, once the source knows its length
      */
-    private DatagramPacket createDataPacket(int initByteIndex) {
-        System.out.printf("Creating data packet # %d \n", initByteIndex);
-        // Setup header for the data packet
-        int byteLocation = initByteIndex * DATA_SIZE;
-        int bytesRemaining = fileData.length - byteLocation;
+    private static int packetCount(RXPUploadSource source, int start, int count) {
+        return Math.max(0, Math.min(count, source.getTotal() - start)) + 1;
+    }
 
-        RXPHeader header = RXPHelpers.initHeader(serverPort, clientRXPPort, seqNum, ackNum);
+    /**
+     * sends a segment that is already in flight again, it waits for the pacer like any other
+     */
+    private void resendPaced(RXPSendWindow window, DatagramPacket packet, int packetNum) throws IOException {
+        window.onResent(packetNum);
+        pacer.pace(packet.getLength());
+        sendSegment(packet);
+    }
 
-        int data_length;
-        if (bytesRemaining <= DATA_SIZE) { //utilized for last segment of data
-            System.out.println(">>>>>>>>>>>>LAST<<<<<<<<<<<");
-            data_length = bytesRemaining;
-            header.setFlags(false, false, false, false, false, true); // LAST flag
+    /**
+     * Data segments of a dispatched connection wait their turn at the scheduler, otherwise they go straight out
+     */
+    private void sendSegment(DatagramPacket packet) throws IOException {
+        if (scheduler != null) {
+            scheduler.send(clientRXPPort, packet);
         } else {
-            data_length = DATA_SIZE;
-            header.setFlags(false, false, false, false, false, false);
+            serverSocket.send(packet);
         }
-        header.setSegmentLength(data_length);
-        byte[] data = new byte[data_length];
-        System.arraycopy(fileData, initByteIndex * DATA_SIZE, data, 0, data_length);
+    }
+
+    /**
+     * packet number packetNum of a transfer of count segments starting at segment start, the trailer comes after them
+     */
+    private DatagramPacket createTransferPacket(RXPUploadSource source, int start, int count, int packetNum)
+            throws IOException {
+        byte[] data = packetNum < count ? source.segment(start + packetNum) : null;
+        if (data != null) {
+            return createDataPacket(data, RXPSendWindow.seqOf(packetNum));
+        }
+        return createTrailerPacket(source.getTrailer(), RXPSendWindow.seqOf(packetNum));
+    }
+
+    /**
+     * creates packets of indexed bytes of file
+     */
+    private DatagramPacket createDataPacket(byte[] data, int packetSeqNum) {
+        // Setup header for the data packet
+        RXPHeader header = RXPHelpers.initHeader(serverPort, clientRXPPort, packetSeqNum, ackNum);
+        header.setFlags(false, false, false, false, false, false);
+
+        header.setSegmentLength(data.length);
         header.setChecksum(data);
 
         return RXPHelpers.preparePacket(clientIpAddress, clientNetPort, header, data);
     }
 
     /**
-     * Downloads file from client by receiving the broken up packets, ACKing back each one, and assembling them at the end
+     * creates the LAST packet carrying the digest trailer of the file
+     */
+    private DatagramPacket createTrailerPacket(byte[] fileTrailer, int packetSeqNum) {
+        RXPHeader header = RXPHelpers.initHeader(serverPort, clientRXPPort, packetSeqNum, ackNum);
+        header.setFlags(false, false, false, false, false, true); // LAST flag
+        header.setSegmentLength(fileTrailer.length);
+        header.setChecksum(fileTrailer);
+
+        return RXPHelpers.preparePacket(clientIpAddress, clientNetPort, header, fileTrailer);
+    }
+
+    /**
+     * Downloads file from client by receiving the broken up packets and assembling them at the end
+     * ACKs are cumulative and coalesced by an RXPReceiveWindow
      * Finishes when it receives a LAST and responds with a LAST ACK
+     * If the file fails the digest in the LAST, the LAST ACK names the ranges the client has to send again
      *
-     * @param receivePacket
+     * @param filePath data of the POST: filename, optionally followed by a range
      * @return
      */
-    private boolean receiveFile(DatagramPacket receivePacket) {
-        // Get received packet info
-        RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
-        byte[] filePath = RXPHelpers.getData(receivePacket); //get the data from the packet
+    private boolean receiveFile(byte[] filePath) {
+        RXPHeader receiveHeader;
 
-        String fileString = null;
-        try {
-            fileString = new String(filePath, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+        String fileString = RXPHelpers.requestedFileName(filePath);
+        int[] range = RXPHelpers.requestedRange(filePath);
+
+        if (range != null && fileString.equals(pendingRepair) && uploadSink != null
+                && range[0] >= 0 && range[0] <= uploadSink.getSegmentCount()) {
+            segmentBase = range[0];
+        } else {
+            if (uploadSink != null) {
+                uploadSink.abort(); // the client gave up on repairing the last one
+            }
+            uploadSink = RXPStorageWriter.open(fileString, RXPHelpers.requestedSize(filePath));
+            if (uploadSink == null) {
+                return false;
+            }
+            segmentBase = 0;
+            receiveDigest = new RXPDigest();
         }
+        suspectRanges = new ArrayList<>();
 
         RXPHeader sendHeader = RXPHelpers.initHeader(serverPort, clientRXPPort, seqNum, ackNum);
         sendHeader.setFlags(true, false, false, false, true, false); // ACK, POST
+        sendHeader.setWindow(RXPReceiveWindow.DEFAULT_SIZE);
 
-        byte[] sendData = new byte[DATA_SIZE];
+        byte[] sendData = new byte[0];
 
         sendHeader.setChecksum(sendData);
         sendHeader.setSegmentLength(sendData.length);
 
         sendPacket = RXPHelpers.preparePacket(clientIpAddress, clientNetPort, sendHeader, sendData);
 
+        RXPReceiveWindow window = new RXPReceiveWindow(RXPReceiveWindow.DEFAULT_SIZE);
         int currPacket = 0;
         int tries = 0;
         boolean finDownload = false;
         boolean closeRequest = false;
-        bytesReceived = new ArrayList<>();
 
+        try {
+            serverSocket.send(sendPacket);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
         while (true) {
             try {
-                serverSocket.send(sendPacket);
-                serverSocket.receive(receivePacket);
+                long ackDelay = window.ackDelay();
+                if (window.hasReady()) {
+                    setTimeout(DRAIN_POLL);
+                } else {
+                    setTimeout(ackDelay >= 0 ? (int) Math.max(1, ackDelay) : SOCKET_TIMEOUT);
+                }
+                receive(receivePacket);
 
                 receiveHeader = RXPHelpers.getHeader(receivePacket);
                 if (!RXPHelpers.passChecksum(receivePacket)) {
@@ -426,67 +1005,360 @@ public class RXPServer extends Thread {
                     break;
                 }
 
-                if (ackNum == receiveHeader.getSeqNum()) {
-                    System.out.println("Correct packet");
-                    sendPacket = receiveDataPacket(receivePacket, currPacket);
-                    currPacket++;
+                if (finDownload && (receiveHeader.isGET() || receiveHeader.isPOST())) {
+                    break;  // client got the LAST ACK and moved on to its next request, it resends that on timeout
                 }
 
-                if (receiveHeader.isLAST()) {
-                    finDownload = true;
+                if (receiveHeader.isGET() || receiveHeader.isPOST()) {
+                    serverSocket.send(sendPacket);  // our ACK of the POST was lost
+                    continue;
                 }
-            } catch (SocketTimeoutException s) {
-                // Times out to verify that the LAST ACK was sent to the client properly
-                if (finDownload) {
-                    break;
+                if (receiveHeader.isACK() || receiveHeader.isControl()) {
+                    continue;
                 }
 
-                System.out.println("Timeout, resending..");
-                if (tries++ >= 5) {
-                    System.out.println("Download could not be started");
-                    return false;
+                boolean ackNow = window.accept(receiveHeader.getSeqNum(), RXPHelpers.getData(receivePacket),
+                        receiveHeader.isLAST());
+                currPacket = drainWindow(window, currPacket);
+                if (ackNow || window.windowUpdateDue() || window.isComplete() != finDownload) {
+                    sendPacket = createAckPacket(window, currPacket);
+                    serverSocket.send(sendPacket);
+                }
+                finDownload = window.isComplete();
+            } catch (SocketTimeoutException s) {
+                try {
+                    if (window.hasReady()) {
+                        // only waited for the storage writer to catch up
+                        currPacket = drainWindow(window, currPacket);
+                        if (window.ackDelay() == 0 || window.windowUpdateDue() || window.isComplete() != finDownload) {
+                            sendPacket = createAckPacket(window, currPacket);
+                            serverSocket.send(sendPacket);
+                        }
+                        finDownload = window.isComplete();
+                        continue;
+                    }
+                    if (window.ackDelay() >= 0) {
+                        // delayed ACK is due
+                        sendPacket = createAckPacket(window, currPacket);
+                        serverSocket.send(sendPacket);
+                        continue;
+                    }
+                    // Times out to verify that the LAST ACK was sent to the client properly
+                    if (finDownload) {
+                        break;
+                    }
+
+                    System.out.println("Timeout, resending..");
+                    if (tries++ >= 5) {
+                        System.out.println("Download could not be started");
+                        return false;
+                    }
+                    serverSocket.send(sendPacket);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-        System.out.println("Finished downloading");
-        boolean resultOfAssemble = RXPHelpers.combineBytesToFile(bytesReceived, fileString);
-        fileData = null;
-        bytesReceived = new ArrayList<>();
+        try {
+            setTimeout(SOCKET_TIMEOUT);
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        bufferTuner.onTransfer((long) window.getSegmentsReceived() * DATA_SIZE, window.getElapsed(), pacer.getSmoothedRtt());
+        System.out.printf("Finished downloading, %d segments came in and %d ACKs went out, %s\n",
+                window.getSegmentsReceived(), window.getAcksSent(), bufferTuner.describe());
+        boolean resultOfAssemble = false;
+        if (!finDownload) {
+            pendingRepair = null;
+            uploadSink.abort();
+        } else if (!suspectRanges.isEmpty()) {
+            System.out.println("File failed the integrity check, waiting for the client to resend");
+            pendingRepair = fileString;
+        } else {
+            resultOfAssemble = uploadSink.finish(RXPDigest.trailerSegmentCount(receiveTrailer));
+            if (resultOfAssemble && RXPPack.isPack(fileString)) {
+                resultOfAssemble = RXPPack.unpack(new File(RXPStorageWriter.storedName(fileString))) >= 0;
+            } else if (resultOfAssemble && RXPTree.isTree(fileString)) {
+                resultOfAssemble = RXPTree.unpack(new File(RXPStorageWriter.storedName(fileString)),
+                        Paths.get(RXPStorageWriter.storedName(RXPTree.directoryName(fileString)))) >= 0;
+            } else if (resultOfAssemble && chunkStore != null && fileString.endsWith(RXPChunkStore.CHUNKS_EXTENSION)) {
+                String baseName = RXPChunkStore.baseName(fileString);
+                resultOfAssemble = chunkStore.store(
+                        new File(RXPStorageWriter.storedName(baseName + RXPChunkStore.RECIPE_EXTENSION)),
+                        new File(RXPStorageWriter.storedName(fileString)),
+                        new File(RXPStorageWriter.storedName(baseName)));
+            }
+            pendingRepair = null;
+        }
+        if (pendingRepair == null) {
+            uploadSink = null;
+        }
         if (closeRequest) {
             respondToCloseReq();
         }
         return resultOfAssemble;
     }
 
+    /**
+     * Sends one file to the client while receiving another from it, see RXPExchange
+     * An upload that fails the digest check is held back for the client's ranged POSTs, like any other upload
+     *
+     * @param request data of the request: the name of the file to send and the name to store the upload under
+     * @param receiveWindow window the client advertised in its request
+     * @return true if both files got across and the upload was stored or is waiting for its ranges
+     */
+    private boolean exchangeFiles(byte[] request, int receiveWindow) {
+        String[] names = RXPHelpers.exchangedFileNames(request);
+        System.out.println(names[0] + " for " + names[1]);
+
+        // read as it is sent, like the file of a GET
+        RXPUploadSource file = openSource(names[0]);
+        if (file == null) {
+            return false;
+        }
+        try {
+            return exchangeFiles(file, names[1], receiveWindow);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * carries out an exchange once the file to send is open, see exchangeFiles
+     *
+     * @param file
+     * @param uploadName name to store the upload under
+     * @param receiveWindow
+     */
+    private boolean exchangeFiles(RXPUploadSource file, String uploadName, int receiveWindow) {
+        if (uploadSink != null) {
+            uploadSink.abort(); // the client gave up on repairing the last one
+        }
+        pendingRepair = null;
+        uploadSink = RXPStorageWriter.open(uploadName);
+        if (uploadSink == null) {
+            return false;
+        }
+
+        RXPHeader sendHeader = RXPHelpers.initHeader(serverPort, clientRXPPort, seqNum, ackNum);
+        sendHeader.setFlags(true, false, false, true, true, false); // ACK, GET, POST
+        sendHeader.setWindow(RXPReceiveWindow.DEFAULT_SIZE);
+        byte[] sendData = new byte[0];
+        sendHeader.setChecksum(sendData);
+        sendHeader.setSegmentLength(sendData.length);
+        sendPacket = RXPHelpers.preparePacket(clientIpAddress, clientNetPort, sendHeader, sendData);
+
+        RXPExchange exchange = new RXPExchange(new RXPExchange.Endpoint() {
+            @Override
+            public void send(DatagramPacket packet, boolean data) throws IOException {
+                if (data) {
+                    sendSegment(packet);
+                } else {
+                    serverSocket.send(packet);
+                }
+            }
+
+            @Override
+            public void receive(DatagramPacket packet, int timeout) throws IOException {
+                setTimeout(timeout);
+                RXPServer.this.receive(packet);
+            }
+        }, clientIpAddress, clientNetPort, serverPort, clientRXPPort, pacer, bufferTuner, file, uploadSink,
+                receiveWindow);
+        exchange.setRequestAck(sendPacket);
+
+        boolean success;
+        try {
+            serverSocket.send(sendPacket);
+            success = exchange.run();
+            setTimeout(SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            e.printStackTrace();
+            success = false;
+        }
+
+        if (!success) {
+            uploadSink.abort();
+        } else if (!exchange.getReceiveSuspects().isEmpty()) {
+            System.out.println("File failed the integrity check, waiting for the client to resend");
+            pendingRepair = uploadName;
+            receiveTrailer = exchange.getReceiveTrailer();
+            receiveDigest = exchange.getReceiveDigest();
+        } else {
+            success = uploadSink.finish(RXPDigest.trailerSegmentCount(exchange.getReceiveTrailer()));
+        }
+        if (pendingRepair == null) {
+            uploadSink = null;
+        }
+        if (exchange.isCloseRequested()) {
+            respondToCloseReq();
+        }
+        return success;
+    }
+
+    /**
+     * The client joined the distribution of a file, see RXPDistributor
+     * The group sends the segments, this connection acknowledges the join and hands the client's LAST ACKs over
+     * until the group is done with the client
+     *
+     * @param request data of the GET: filename
+     * @return true if the client got the file
+     */
+    private boolean joinDistribution(byte[] request) {
+        String fileName = RXPHelpers.requestedFileName(request);
+        System.out.println(fileName);
+
+        RXPDistributor group = RXPDistributor.join(distributions, fileName, () -> openSource(fileName), this,
+                serverPort);
+        if (group == null) {
+            return false;
+        }
+        try {
+            serverSocket.send(createJoinAck(new byte[0]));
+            setTimeout(REPORT_POLL);
+        } catch (IOException e) {
+            e.printStackTrace();
+            group.leave(this);
+            return false;
+        }
+
+        while (!group.isFinished(this)) {
+            try {
+                receive(receivePacket);
+                if (!RXPHelpers.passChecksum(receivePacket)
+                        || !RXPHelpers.isValidPorts(receivePacket, serverPort, clientRXPPort)) {
+                    continue;
+                }
+                RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
+                if (receiveHeader.isFIN() && !receiveHeader.isACK()) {
+                    group.leave(this);
+                    respondToCloseReq();
+                    return false;
+                }
+                if (receiveHeader.isGET() && !receiveHeader.isACK()) {
+                    serverSocket.send(createJoinAck(new byte[0])); // our ACK of the join was lost
+                } else if (receiveHeader.isACK() && receiveHeader.isLAST()) {
+                    group.report(this, RXPHelpers.decodeRanges(RXPHelpers.getData(receivePacket)));
+                }
+            } catch (SocketTimeoutException s) {
+                // the group is sending, nothing to hand over
+            } catch (IOException e) {
+                e.printStackTrace();
+                group.leave(this);
+            }
+        }
+
+        boolean delivered = group.isDelivered(this);
+        try {
+            if (delivered) {
+                serverSocket.send(createJoinAck(new byte[]{1})); // the client has the file, it can stop asking
+            }
+            setTimeout(SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return delivered;
+    }
+
+    /**
+     * ACK GET LAST, acknowledges the join without data and the client's last report with some
+     */
+    private DatagramPacket createJoinAck(byte[] data) {
+        RXPHeader sendHeader = RXPHelpers.initHeader(serverPort, clientRXPPort, seqNum, ackNum);
+        sendHeader.setFlags(true, false, false, true, false, true); // ACK, GET, LAST
+        sendHeader.setSegmentLength(data.length);
+        sendHeader.setChecksum(data);
+        return RXPHelpers.preparePacket(clientIpAddress, clientNetPort, sendHeader, data);
+    }
+
+    /**
+     * Sends a segment of a distribution this connection's client is in, the group already set the destination port
+     *
+     * @param packet header and data
+     * @throws IOException
+     */
+    void sendDistributed(byte[] packet) throws IOException {
+        sendSegment(new DatagramPacket(packet, packet.length, clientIpAddress, clientNetPort));
+    }
+
+    int getClientRXPPort() {
+        return clientRXPPort;
+    }
+
     /*
-    * take received packets into byte array collection and prepare ack packet
+    * move in-order segments out of the window while the storage writer has room, the trailer is checked right away
     */
-    private DatagramPacket receiveDataPacket(DatagramPacket receivePacket, int nextPacketNum) {
-        RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
+    private int drainWindow(RXPReceiveWindow window, int currPacket) {
+        byte[] data;
+        while (uploadSink.hasRoom() && (data = window.poll()) != null) {
+            if (window.isComplete()) {
+                receiveTrailer = data;
+                suspectRanges = verifyUpload(data);
+            } else {
+                storeSegment(data, currPacket);
+            }
+            currPacket++;
+        }
+        return currPacket;
+    }
 
-        // extracts and adds data to ArrayList of byte[]s
-        byte[] data = RXPHelpers.getData(receivePacket);
-        bytesReceived.add(data);
+    /*
+    * hand an in-order segment to the storage writer
+    */
+    private void storeSegment(byte[] data, int nextPacketNum) {
+        int segmentIndex = segmentBase + nextPacketNum;
+        uploadSink.write(segmentIndex, data);
+        if (receiveDigest != null) {
+            receiveDigest.update(segmentIndex, data);
+        }
+    }
 
-        ackNum = (receiveHeader.getSeqNum() + 1) % MAX_SEQ_NUM;
-        seqNum = receiveHeader.getAckNum();
-        RXPHeader ackHeader = RXPHelpers.initHeader(serverPort, clientRXPPort, seqNum, ackNum);
-        if (receiveHeader.isLAST()) {
+    /*
+    * prepare the cumulative ack, a header without data except for the LAST ACK, which names the ranges to resend
+    */
+    private DatagramPacket createAckPacket(RXPReceiveWindow window, int packetsReceived) {
+        RXPHeader ackHeader = RXPHelpers.initHeader(serverPort, clientRXPPort, seqNum, window.ackNumber());
+        ackHeader.setWindow(window.advertisedWindow());
+        byte[] dataBytes;
+        if (window.isComplete()) {
             ackHeader.setFlags(true, false, false, false, false, true); // ACK LAST
             System.out.println("Creating LAST ACK packet");
+            dataBytes = RXPHelpers.encodeRanges(packetsReceived - 1, suspectRanges);
         } else {
-            ackHeader.setFlags(true, false, false, true, false, false);    // ACK
+            ackHeader.setFlags(true, false, false, false, false, false);    // ACK
+            dataBytes = new byte[0];
         }
 
-        byte[] dataBytes = ByteBuffer.allocate(4).putInt(nextPacketNum).array();
         ackHeader.setChecksum(dataBytes);
         ackHeader.setSegmentLength(dataBytes.length);
+        window.onAckSent();
 
         return RXPHelpers.preparePacket(clientIpAddress, clientNetPort, ackHeader, dataBytes);
     }
 
+    /**
+     * Checks the received segments against the trailer and trims anything past the end of the file
+     *
+     * @param fileTrailer
+     * @return ranges that have to be sent again
+     */
+    private ArrayList<int[]> verifyUpload(byte[] fileTrailer) {
+        int totalSegments = RXPDigest.trailerSegmentCount(fileTrailer);
+        int segments = uploadSink.getSegmentCount();
+        if (totalSegments >= 0 && segments > totalSegments) {
+            segments = totalSegments;   // cut off when the file is finished
+            receiveDigest = null;
+        }
+
+        // the digest is kept across repairs, the blocks sent again are hashed again as they come in
+        if (receiveDigest == null) {
+            receiveDigest = uploadSink.digest(segments); // rebuilt from what has been written
+        }
+        return receiveDigest.findSuspectRanges(fileTrailer);
+    }
+
     /**
      * Received FIN from client, sends FIN ACK back, transitions state to CLOSE_WAIT
      */
@@ -506,7 +1378,7 @@ public class RXPServer extends Thread {
             try {
                 serverSocket.send(sendPacket);
                 finAckSent = true;
-                serverSocket.receive(receivePacket);
+                receive(receivePacket);
             } catch (SocketTimeoutException s) {
                 if (finAckSent) {
                     break;
@@ -524,6 +1396,7 @@ public class RXPServer extends Thread {
      */
     private void serverDisconnect() {
         System.out.println("Beginning disconnection from server side...");
+        closeReq = false;
 
         RXPHeader sendHeader = RXPHelpers.initHeader(serverPort, clientRXPPort, seqNum, ackNum);
         sendHeader.setFlags(false, false, true, false, false, false); // FIN.
@@ -539,7 +1412,7 @@ public class RXPServer extends Thread {
         while (true) {
             try {
                 serverSocket.send(sendingPacket);
-                serverSocket.receive(receivePacket);
+                receive(receivePacket);
 
                 RXPHeader receiveHeader = RXPHelpers.getHeader(receivePacket);
 
@@ -561,6 +1434,7 @@ public class RXPServer extends Thread {
                 System.out.println("Timeout, resending");
                 if (tries++ >= 5) {
                     System.out.println("Unsuccessful request.");
+                    break;
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -6,6 +6,7 @@ import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,6 +15,7 @@ import java.util.regex.Pattern;
  */
 public class RXPServerApplication {
     public static RXPServer server;
+    public static RXPServerDispatcher dispatcher; // set instead of server when running with -vthreads
 
     public static void main(String[] args) {
         if (args.length > 0 && args[0].equalsIgnoreCase("fxa-server")) {
@@ -30,8 +32,114 @@ public class RXPServerApplication {
                     int netEmuPort = Integer.parseInt(args[3]);
 
                     System.out.println("Initializing RXP Server...");
-                    server = new RXPServer(serverPort, netEmuIpAddress, netEmuPort);
-                    server.createSocket();
+
+                    //Optional: -keepalive S and -idle S, in seconds, and -vthreads to serve every client on its own thread
+                    //-rate K caps each connection and -totalrate K all of them together, in KB/s
+                    //-priority P:W gives the client on RXP port P a share of W instead of 1 when connections send at once
+                    //-shards N reads the port with N sockets on N threads, implies -vthreads
+                    //-sockbuf MIN:MAX bounds the automatically sized socket buffers, in KB
+                    //-fsync none|periodic|complete says when uploaded files are forced to the disk
+                    //-dedup keeps uploads in a chunk store, each chunk stored once, see RXPChunkStore
+                    //-relay A:P makes this a caching relay for the RXP server at A:P (or the NetEmu in front of it),
+                    //-relayports F:N fetches from it over up to N connections on ports F to F+N-1
+                    long keepAlive = -1, idle = -1, rate = 0;
+                    String upstream = null;
+                    RXPChunkStore chunkStore = null;
+                    int relayPort = serverPort + 1, relayConnections = 4;
+                    int shards = 1;
+                    boolean threadPerConnection = false;
+                    ArrayList<int[]> priorities = new ArrayList<>();
+                    for (int i = 4; i < args.length; i++) {
+                        if (args[i].equalsIgnoreCase("-vthreads")) {
+                            threadPerConnection = true;
+                        } else if (args[i].equalsIgnoreCase("-sockbuf") && i + 1 < args.length) {
+                            if (!RXPBufferTuner.setBounds(args[++i])) {
+                                System.exit(1);
+                            }
+                        } else if (args[i].equalsIgnoreCase("-dedup")) {
+                            chunkStore = new RXPChunkStore(new File(RXPChunkStore.DIRECTORY));
+                        } else if (args[i].equalsIgnoreCase("-fsync") && i + 1 < args.length) {
+                            if (!RXPStorageWriter.setSyncPolicy(args[++i])) {
+                                System.exit(1);
+                            }
+                        } else if (args[i].equalsIgnoreCase("-shards") && i + 1 < args.length) {
+                            shards = Integer.parseInt(args[++i]);
+                            threadPerConnection = true;
+                        } else if (args[i].equalsIgnoreCase("-keepalive") && i + 1 < args.length) {
+                            keepAlive = Long.parseLong(args[++i]) * 1000;
+                        } else if (args[i].equalsIgnoreCase("-idle") && i + 1 < args.length) {
+                            idle = Long.parseLong(args[++i]) * 1000;
+                        } else if (args[i].equalsIgnoreCase("-rate") && i + 1 < args.length) {
+                            rate = Long.parseLong(args[++i]) * 1024;
+                        } else if (args[i].equalsIgnoreCase("-totalrate") && i + 1 < args.length) {
+                            RXPPacer.setGlobalRateCap(Long.parseLong(args[++i]) * 1024);
+                        } else if (args[i].equalsIgnoreCase("-relay") && i + 1 < args.length) {
+                            upstream = args[++i];
+                        } else if (args[i].equalsIgnoreCase("-relayports") && i + 1 < args.length) {
+                            String[] ports = args[++i].split(":");
+                            relayPort = Integer.parseInt(ports[0]);
+                            if (ports.length > 1) {
+                                relayConnections = Integer.parseInt(ports[1]);
+                            }
+                        } else if (args[i].equalsIgnoreCase("-priority") && i + 1 < args.length) {
+                            String[] priority = args[++i].split(":");
+                            if (priority.length != 2) {
+                                System.err.println("Priority must be given as port:weight");
+                                System.exit(1);
+                            }
+                            priorities.add(new int[]{Integer.parseInt(priority[0]), Integer.parseInt(priority[1])});
+                        } else {
+                            System.err.println("Unknown option " + args[i]);
+                            System.exit(1);
+                        }
+                    }
+
+                    RXPRelay relay = null;
+                    if (upstream != null) {
+                        String[] address = upstream.split(":");
+                        if (address.length != 2) {
+                            System.err.println("Relay upstream must be given as address:port");
+                            System.exit(1);
+                        }
+                        relay = new RXPRelay(address[0], Integer.parseInt(address[1]), relayPort, relayConnections);
+                        System.out.println("Relaying for " + upstream);
+                    }
+
+                    if (threadPerConnection) {
+                        dispatcher = new RXPServerDispatcher(serverPort);
+                        dispatcher.setRelay(relay);
+                        dispatcher.setChunkStore(chunkStore);
+                        if (keepAlive > 0) {
+                            dispatcher.setKeepAliveInterval(keepAlive);
+                        }
+                        if (idle > 0) {
+                            dispatcher.setIdleTimeout(idle);
+                        }
+                        dispatcher.setRateCap(rate);
+                        dispatcher.setShards(shards);
+                        for (int[] priority : priorities) {
+                            dispatcher.setPriority(priority[0], priority[1]);
+                        }
+                        if (!dispatcher.createSocket()) {
+                            System.err.println("Could not bind port " + serverPort);
+                            System.exit(1);
+                        }
+                    } else {
+                        server = new RXPServer(serverPort, netEmuIpAddress, netEmuPort);
+                        if (keepAlive > 0) {
+                            server.setKeepAliveInterval(keepAlive);
+                        }
+                        if (idle > 0) {
+                            server.setIdleTimeout(idle);
+                        }
+                        server.setRateCap(rate);
+                        server.setRelay(relay);
+                        server.setChunkStore(chunkStore);
+                        if (!priorities.isEmpty()) {
+                            System.out.println("Priorities only matter with -vthreads, a single server serves one client");
+                        }
+                        server.createSocket();
+                    }
                     System.out.println("Initialization Complete");
                 } catch(NumberFormatException e){
                     System.err.println("The port argument must be a valid port number.");
@@ -45,11 +153,15 @@ public class RXPServerApplication {
                 System.exit(1);
             }
         } else {
-            System.err.println("fta-server must be run as first command in the format of fxa-server serverPort netEmuIp netEmuPort");
+            System.err.println("fta-server must be run as first command in the format of fxa-server serverPort netEmuIp netEmuPort [-keepalive seconds] [-idle seconds] [-vthreads] [-rate KB/s] [-totalrate KB/s] [-priority port:weight] [-shards N] [-sockbuf minKB:maxKB] [-relay ip:port] [-relayports firstPort:count] [-fsync none|periodic|complete] [-dedup]");
             System.exit(1);
         }
 
-        server.start();
+        if (dispatcher != null) {
+            dispatcher.start();
+        } else {
+            server.start();
+        }
         RXPServerApplicationInput RXPServerInput = new RXPServerApplicationInput();
         RXPServerInput.start();
     }
@@ -7,25 +7,27 @@ import java.io.InputStreamReader;
  */
 public class RXPServerApplicationInput extends Thread {
     public void run() {
-        long end = System.currentTimeMillis();
         InputStreamReader fileInputStream = new InputStreamReader(System.in);
         BufferedReader bufferedReader = new BufferedReader(fileInputStream);
 
         try {
-            String s = "";
+            String s;
 
-            while((System.currentTimeMillis()>=end)) {
-                s = "";
-                if (bufferedReader.ready()) {
-                    s += bufferedReader.readLine();
-                    System.out.println("here");
-
-                    System.out.println(s);
-                    if (s.equalsIgnoreCase("terminate")) {
-                        RXPServerApplication.server.terminate();
+            // blocks until a command comes in; once the input is closed the server just keeps serving
+            while ((s = bufferedReader.readLine()) != null) {
+                s = s.trim();
+                if (s.isEmpty()) {
+                    continue;
+                }
+                System.out.println(s);
+                if (s.equalsIgnoreCase("terminate")) {
+                    if (RXPServerApplication.dispatcher != null) {
+                        RXPServerApplication.dispatcher.terminate();
                     } else {
-                        System.err.println("Invalid command");
+                        RXPServerApplication.server.terminate();
                     }
+                } else {
+                    System.err.println("Invalid command");
                 }
             }
             bufferedReader.close();
@@ -0,0 +1,399 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the server socket on a single thread and hands each datagram to the connection it belongs to
+ * Every connection is an RXPServer running its usual blocking state machine on its own thread,
+ * a virtual thread when the JVM has them (Java 21+) and a daemon platform thread otherwise
+ *
+ * Connections are keyed by the client's RXP port, a new one is only started for a SYN that passes its checksum
+ * Replies go back to wherever the SYN came from, which is the NetEmu when one sits in between
+ *
+ * Data segments don't go straight onto the socket, the RXPTransmitScheduler takes turns between the connections
+ * so they share the link fairly, weighted by the priority given to each client
+ *
+ * With more than one shard the port is bound by that many sockets with SO_REUSEPORT (Java 9+), each read by its own
+ * thread, and the kernel spreads the clients over them. Each shard owns the connections whose RXP port hashes to it
+ * and they send on its socket; a packet that comes in on another shard's socket is still handed to the owner
+ */
+public class RXPServerDispatcher extends Thread {
+    private static final int PACKET_SIZE = 512;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECEIVE_POLL = 100; // how often the timer wheel is turned while the socket is quiet
+    private static final int WHEEL_TICK = 100;
+    private static final int MAX_SESSIONS = 4096;
+
+    private final int serverPort;
+    private int shardCount = 1;
+    private Shard[] shards;
+
+    private final RXPChallengeTable challengeTable = new RXPChallengeTable();
+    private final RXPTicket tickets = new RXPTicket();
+    private final RXPTimerWheel timerWheel = new RXPTimerWheel(WHEEL_TICK);
+    private long keepAliveInterval = 15 * 1000;
+    private long idleTimeout = 5 * 60 * 1000;
+    private long rateCap = 0;
+    private final HashMap<Integer, Integer> priorities = new HashMap<>();
+    private final ConcurrentHashMap<String, RXPDistributor> distributions = new ConcurrentHashMap<>();
+    private RXPRelay relay;
+    private RXPChunkStore chunkStore;
+    private volatile boolean running = true;
+
+    // Thread.ofVirtual() and Thread.Builder.start(Runnable), looked up once; null before Java 21
+    private static final Object VIRTUAL_BUILDER;
+    private static final Method VIRTUAL_START;
+
+    // DatagramSocket.setOption(SocketOption, Object) and StandardSocketOptions.SO_REUSEPORT; null before Java 9
+    private static final Method SET_OPTION;
+    private static final Object REUSE_PORT;
+
+    static {
+        Object builder = null;
+        Method start = null;
+        try {
+            builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            start = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            builder = null;
+            start = null;
+        }
+        VIRTUAL_BUILDER = builder;
+        VIRTUAL_START = start;
+
+        Method setOption = null;
+        Object reusePort = null;
+        try {
+            setOption = DatagramSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+            reusePort = StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            setOption = null;
+            reusePort = null;
+        }
+        SET_OPTION = setOption;
+        REUSE_PORT = reusePort;
+    }
+
+    /**
+     * One socket of the server, the thread reading it and the connections it owns
+     */
+    private class Shard implements Runnable {
+        private final int index;
+        private final DatagramSocket socket;
+        private final RXPTransmitScheduler scheduler;
+        private final RXPBufferTuner bufferTuner;
+        private final ConcurrentHashMap<Integer, RXPServer> sessions = new ConcurrentHashMap<>();
+
+        private Shard(int index, DatagramSocket socket) {
+            this.index = index;
+            this.socket = socket;
+            this.scheduler = new RXPTransmitScheduler(socket);
+            this.bufferTuner = new RXPBufferTuner(socket);
+            for (Map.Entry<Integer, Integer> priority : priorities.entrySet()) {
+                scheduler.setWeight(priority.getKey(), priority.getValue());
+            }
+        }
+
+        @Override
+        public void run() {
+            scheduler.start();
+            while (running) {
+                // a fresh packet each time, the connection keeps it in its inbox until it gets to it
+                DatagramPacket packet = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+                try {
+                    socket.receive(packet);
+                    dispatch(packet);
+                } catch (SocketTimeoutException e) {
+                    // nothing came in, just turn the wheel
+                } catch (IOException e) {
+                    if (running) {
+                        e.printStackTrace();
+                    }
+                }
+                if (index == 0) {
+                    timerWheel.advance();
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param serverPort
+     */
+    public RXPServerDispatcher(int serverPort) {
+        super("rxp-dispatcher");
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Has to be called before createSocket
+     *
+     * @param shardCount number of sockets, and threads reading them, the port is bound by
+     */
+    public void setShards(int shardCount) {
+        if (shardCount > 1 && REUSE_PORT == null) {
+            System.out.println("Sharding needs SO_REUSEPORT, which needs Java 9+, running a single shard");
+            shardCount = 1;
+        }
+        this.shardCount = Math.max(1, shardCount);
+    }
+
+    /**
+     * Creates the socket of every shard
+     *
+     * @return true if the sockets could be bound
+     */
+    public boolean createSocket() {
+        shards = new Shard[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                DatagramSocket socket = new DatagramSocket(null);
+                if (shardCount > 1 && !setReusePort(socket)) {
+                    socket.close();
+                    if (i > 0) {
+                        return false;
+                    }
+                    System.out.println("SO_REUSEPORT is not supported here, running a single shard");
+                    shardCount = 1;
+                    shards = new Shard[1];
+                    socket = new DatagramSocket(null);
+                }
+                socket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), serverPort));
+                socket.setSoTimeout(RECEIVE_POLL);
+                shards[i] = new Shard(i, socket);
+            }
+            return true;
+        } catch (SocketException | UnknownHostException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static boolean setReusePort(DatagramSocket socket) {
+        try {
+            SET_OPTION.invoke(socket, REUSE_PORT, true);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;   // UnsupportedOperationException on platforms without it
+        }
+    }
+
+    /**
+     * Used to thread, part of Thread, which was extended
+     * Reads the first shard's socket itself and starts a thread for each of the others
+     */
+    @Override
+    public void run() {
+        System.out.println("Dispatching connections on " + (VIRTUAL_BUILDER != null ? "virtual" : "platform") + " threads"
+                + (shards.length > 1 ? ", " + shards.length + " shards" : ""));
+        for (int i = 1; i < shards.length; i++) {
+            Thread thread = new Thread(shards[i], "rxp-shard-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        shards[0].run();
+    }
+
+    /**
+     * @param clientPort RXP port of the client
+     * @return shard that owns the client's connection
+     */
+    private Shard shardOf(int clientPort) {
+        return shards[((clientPort * 0x9E3779B1) >>> 16) % shards.length];
+    }
+
+    /**
+     * Hands the packet to its connection, starting a new connection for a SYN from an unknown port
+     *
+     * @param packet
+     */
+    private void dispatch(DatagramPacket packet) {
+        if (packet.getLength() < HEADER_SIZE) {
+            return;
+        }
+        // a SYN doesn't know the server's RXP port yet, the connections check the ports themselves
+        RXPHeader header = RXPHelpers.getHeader(packet);
+        int clientPort = header.getSource();
+        Shard owner = shardOf(clientPort);
+
+        RXPServer session = owner.sessions.get(clientPort);
+        if (session == null) {
+            if (!header.isSYN() || !RXPHelpers.passChecksum(packet)) {
+                return;
+            }
+            if (getSessionCount() >= MAX_SESSIONS) {
+                System.out.println("Too many connections, dropping SYN from port " + clientPort);
+                return;
+            }
+            session = new RXPServer(this, owner.socket, owner.scheduler, owner.bufferTuner,
+                    (InetSocketAddress) packet.getSocketAddress());
+            RXPServer existing = owner.sessions.putIfAbsent(clientPort, session);
+            if (existing != null) {
+                session = existing; // the same SYN came in on two shards at once
+            } else {
+                startSession(owner, clientPort, session);
+            }
+        }
+        if (!session.deliver(packet)) {
+            System.out.println("Connection " + clientPort + " is behind, dropped a packet");
+        }
+    }
+
+    private void startSession(Shard owner, int clientPort, RXPServer session) {
+        Runnable task = () -> {
+            try {
+                session.run();
+            } finally {
+                owner.sessions.remove(clientPort, session);
+                owner.scheduler.remove(clientPort);
+            }
+        };
+        if (VIRTUAL_START != null) {
+            try {
+                VIRTUAL_START.invoke(VIRTUAL_BUILDER, task);
+                return;
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }
+        Thread thread = new Thread(task, "rxp-session-" + clientPort);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Terminates every established connection
+     * Called in the application level
+     */
+    public void terminate() {
+        boolean any = false;
+        for (Shard shard : shards) {
+            for (RXPServer session : shard.sessions.values()) {
+                if (session.isEstablished()) {
+                    session.terminate();
+                    any = true;
+                }
+            }
+        }
+        if (!any) {
+            System.out.println("No connection to terminate");
+        }
+    }
+
+    /**
+     * @return number of connections currently being served
+     */
+    public int getSessionCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.sessions.size();
+        }
+        return count;
+    }
+
+    int getServerPort() {
+        return serverPort;
+    }
+
+    RXPChallengeTable getChallengeTable() {
+        return challengeTable;
+    }
+
+    RXPTicket getTickets() {
+        return tickets;
+    }
+
+    RXPTimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    long getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    long getRateCap() {
+        return rateCap;
+    }
+
+    RXPRelay getRelay() {
+        return relay;
+    }
+
+    RXPChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    /**
+     * @return distributions gathering clients right now, by file, shared by every connection
+     */
+    Map<String, RXPDistributor> getDistributions() {
+        return distributions;
+    }
+
+    /**
+     * @param keepAliveInterval how long a client may stay silent before it is probed, in ms
+     */
+    public void setKeepAliveInterval(long keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    /**
+     * @param idleTimeout how long a session may go without a GET or POST before it is closed, in ms
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @param rateCap most bytes/s each connection may send, 0 for no cap
+     */
+    public void setRateCap(long rateCap) {
+        this.rateCap = rateCap;
+    }
+
+    /**
+     * @param relay fetches the files GETs ask for that aren't in the working directory, shared by every connection
+     */
+    public void setRelay(RXPRelay relay) {
+        this.relay = relay;
+    }
+
+    /**
+     * @param chunkStore keeps uploads deduplicated, shared by every connection; null to store them as they come
+     */
+    public void setChunkStore(RXPChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+    }
+
+    /**
+     * Gives a client a bigger share of the link while several connections are sending
+     *
+     * @param clientPort RXP port of the client
+     * @param weight share relative to the default of 1
+     */
+    public void setPriority(int clientPort, int weight) {
+        priorities.put(clientPort, weight);
+        if (shards != null) {
+            for (Shard shard : shards) {
+                shard.scheduler.setWeight(clientPort, weight);
+            }
+        }
+    }
+}
@@ -0,0 +1,506 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage stage of a download: a single thread that writes the received segments to disk
+ * Whoever receives puts its in-order segments in the writer's RXPRingBuffer and goes back to the socket,
+ * so a slow disk never holds up the ACKs. When the queue is full the receiver keeps the segments in its
+ * receive window instead, which shrinks the window it advertises and slows the sender down
+ *
+ * Segments go into a downloaded_NAME.*.part file at their offset in the file, so ranges fetched again land
+ * where they belong, and the file only takes its real name once it has passed the digest check, moved over any old
+ * one in a single step so the name never shows a partial file. When the sender announced the size the part file's
+ * length is set to it before the first write, otherwise it is grown GROW_STEP at a time rather than segment by
+ * segment; either way it is cut to what was received at the end. Only the length is set, no disk blocks are reserved
+ * and they are taken as the segments are written; a size the disk has no room for is refused up front though.
+ * How often the data is forced to the disk is up to the SyncPolicy
+ *
+ * A sink can also hand the bytes to a channel or stream of the caller's instead of a file. Those are written in order
+ * on the writer thread as well, so they can't be read back for a digest and ranges can't be fetched again
+ * A sink for a publisher hands the segments to its subscriber instead and only has room while the subscriber
+ * has asked for more, so a slow subscriber shrinks the receive window just like a slow disk; once the subscriber
+ * cancels, the receiver calls the transfer off
+ */
+public class RXPStorageWriter extends Thread {
+    private static final int DATA_SIZE = 496;
+    private static final int QUEUE_SIZE = 1024;
+    private static final int POLL = 100;
+    private static final long GROW_STEP = 8 * 1024 * 1024;
+    private static final long SYNC_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * When received files are forced to the disk
+     * NONE leaves it to the OS, PERIODIC every SYNC_BYTES and before the file takes its name,
+     * COMPLETE only before it takes its name
+     */
+    public enum SyncPolicy { NONE, PERIODIC, COMPLETE }
+
+    private static RXPStorageWriter shared;
+    private static volatile SyncPolicy syncPolicy = SyncPolicy.NONE;
+
+    private final RXPRingBuffer<Write> queue = new RXPRingBuffer<>(QUEUE_SIZE);
+
+    /**
+     * A segment to write, or with no data a marker the caller waits on until everything before it is written
+     */
+    private static class Write {
+        private final Sink sink;
+        private final long offset;
+        private final byte[] data;
+        private final CountDownLatch done;
+
+        private Write(Sink sink, long offset, byte[] data, CountDownLatch done) {
+            this.sink = sink;
+            this.offset = offset;
+            this.data = data;
+            this.done = done;
+        }
+    }
+
+    /**
+     * A file being received
+     */
+    public class Sink {
+        private final File part;
+        private final File target;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final WritableByteChannel stream; // the caller's, instead of a file
+        private final OutputStream flushed; // flushed when the sink finishes, if the caller gave a stream
+        private final SubmissionPublisher<ByteBuffer> publisher; // the caller's subscriber takes the segments
+        private int[] lengths = new int[64];
+        private int segmentCount = 0;
+        private long fileLength = 0; // length the part file is set to, only touched by the writer thread after open
+        private long unsynced = 0; // bytes written since the file was last forced
+        private volatile boolean failed = false;
+
+        private Sink(File part, File target, long size) throws IOException {
+            this.part = part;
+            this.target = target;
+            this.file = new RandomAccessFile(part, "rw");
+            this.fileLength = Math.max(0, size);
+            this.file.setLength(fileLength); // a sparse file on most file systems, its blocks come with the writes
+            this.channel = file.getChannel();
+            this.stream = null;
+            this.flushed = null;
+            this.publisher = null;
+        }
+
+        private Sink(WritableByteChannel stream, OutputStream flushed) {
+            this.part = null;
+            this.target = null;
+            this.file = null;
+            this.channel = null;
+            this.stream = stream;
+            this.flushed = flushed;
+            this.publisher = null;
+        }
+
+        private Sink(SubmissionPublisher<ByteBuffer> publisher) {
+            this.part = null;
+            this.target = null;
+            this.file = null;
+            this.channel = null;
+            this.stream = null;
+            this.flushed = null;
+            this.publisher = publisher;
+        }
+
+        /**
+         * @return whether written segments can be read back and overwritten, i.e. whether ranges can be fetched again
+         */
+        public boolean canRepair() {
+            return stream == null && publisher == null;
+        }
+
+        /**
+         * @return whether the subscriber of a publisher's sink cancelled, so nothing more should be fetched for it
+         */
+        public boolean isCancelled() {
+            return publisher != null && publisher.getNumberOfSubscribers() == 0;
+        }
+
+        /**
+         * @return whether the writer can take another segment without waiting
+         */
+        public boolean hasRoom() {
+            if (publisher != null) {
+                if (failed || isCancelled()) {
+                    return true;    // nobody takes the segments anymore, they are dropped until the GET is called off
+                }
+                return publisher.estimateMinimumDemand() > 0
+                        && publisher.estimateMaximumLag() < publisher.getMaxBufferCapacity();
+            }
+            return queue.remainingCapacity() > 0;
+        }
+
+        /**
+         * Hands a segment to the writer, waits for room only if another receiver took it since hasRoom
+         *
+         * @param index position of the segment in the file
+         * @param data
+         */
+        public void write(int index, byte[] data) {
+            if (publisher != null) {
+                if (index != segmentCount++ || isCancelled()) {
+                    failed = true;  // out of order, or the subscriber cancelled
+                }
+                if (!failed) {
+                    publisher.submit(ByteBuffer.wrap(data));
+                }
+                return;
+            }
+            if (stream != null) {
+                if (index != segmentCount) {
+                    failed = true;  // a stream only takes the segments in order
+                    return;
+                }
+                segmentCount++;
+                try {
+                    queue.put(new Write(this, 0, data, null));
+                } catch (InterruptedException e) {
+                    failed = true;
+                }
+                return;
+            }
+            if (index >= lengths.length) {
+                lengths = Arrays.copyOf(lengths, Math.max(index + 1, lengths.length * 2));
+            }
+            lengths[index] = data.length;
+            segmentCount = Math.max(segmentCount, index + 1);
+            try {
+                queue.put(new Write(this, (long) index * DATA_SIZE, data, null));
+            } catch (InterruptedException e) {
+                failed = true;
+            }
+        }
+
+        /**
+         * @return one past the highest segment written so far
+         */
+        public int getSegmentCount() {
+            return segmentCount;
+        }
+
+        /**
+         * Reads the first segments back from the file once they are written, for a digest after ranges came in again
+         * The blocks are read and hashed in parallel, a file that can't be read gives an empty digest
+         *
+         * @param segments
+         * @return
+         */
+        public RXPDigest digest(int segments) {
+            if (!sync() || !canRepair()) {
+                return new RXPDigest();
+            }
+            try {
+                return RXPDigest.of(Math.min(segments, segmentCount), i -> {
+                    // positional reads leave the channel where it was, so the blocks can be read side by side
+                    ByteBuffer buffer = ByteBuffer.allocate(lengths[i]);
+                    int n = 0;
+                    while (buffer.hasRemaining() && n >= 0) {
+                        n = channel.read(buffer, (long) i * DATA_SIZE + buffer.position());
+                    }
+                    return buffer.array();
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new RXPDigest(); // nothing matches, so every range is asked for again
+            }
+        }
+
+        /**
+         * Waits for the writes so far, cuts the file to its segments and gives it its real name
+         * A caller's stream is flushed but left open
+         *
+         * @param totalSegments data segments in the file, -1 to keep all that were written
+         * @return true if the file was stored
+         */
+        public boolean finish(int totalSegments) {
+            boolean success = sync();
+            if (publisher != null) {
+                if (success) {
+                    publisher.close();
+                } else {
+                    publisher.closeExceptionally(new IOException("Download failed"));
+                }
+                return success;
+            }
+            if (stream != null) {
+                return success && flush();
+            }
+            int segments = totalSegments >= 0 ? Math.min(totalSegments, segmentCount) : segmentCount;
+            try {
+                if (success) {
+                    file.setLength(segments == 0 ? 0 : (long) (segments - 1) * DATA_SIZE + lengths[segments - 1]);
+                    if (syncPolicy != SyncPolicy.NONE) {
+                        channel.force(true);
+                    }
+                }
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                success = false;
+            }
+            if (success) {
+                success = moveIntoPlace(part, target);
+            }
+            if (!success) {
+                part.delete();
+            }
+            return success;
+        }
+
+        /**
+         * Drops the file, e.g. when the transfer failed
+         */
+        public void abort() {
+            sync();
+            if (publisher != null) {
+                publisher.closeExceptionally(new IOException("Download failed"));
+                return;
+            }
+            if (stream != null) {
+                return;
+            }
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            part.delete();
+        }
+
+        /**
+         * @return false if any write failed
+         */
+        private boolean sync() {
+            CountDownLatch done = new CountDownLatch(1);
+            try {
+                queue.put(new Write(this, 0, null, done));
+                done.await();
+            } catch (InterruptedException e) {
+                failed = true;
+            }
+            return !failed;
+        }
+
+        /**
+         * writes a segment where it belongs in the part file, growing the file ahead of it and forcing it
+         * to the disk as the policy asks; on the writer thread
+         */
+        private void writeAt(ByteBuffer buffer, long offset) throws IOException {
+            long end = offset + buffer.remaining();
+            if (end > fileLength) {
+                fileLength = Math.max(end, fileLength + GROW_STEP);
+                file.setLength(fileLength);
+            }
+            unsynced += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset);
+            }
+            if (syncPolicy == SyncPolicy.PERIODIC && unsynced >= SYNC_BYTES) {
+                channel.force(false);
+                unsynced = 0;
+            }
+        }
+
+        private boolean flush() {
+            if (flushed == null) {
+                return true;
+            }
+            try {
+                flushed.flush();
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    private RXPStorageWriter() {
+        super("rxp-storage");
+        setDaemon(true);
+    }
+
+    /**
+     * @param fileName name a file was sent under
+     * @return name it is stored under once received
+     */
+    public static String storedName(String fileName) {
+        return "downloaded_" + fileName;
+    }
+
+    /**
+     * Takes the policy from a command line option
+     *
+     * @param policy none, periodic or complete
+     * @return false if it couldn't be read
+     */
+    public static boolean setSyncPolicy(String policy) {
+        try {
+            syncPolicy = SyncPolicy.valueOf(policy.toUpperCase());
+            return true;
+        } catch (IllegalArgumentException e) {
+            System.err.println("fsync policy must be none, periodic or complete");
+            return false;
+        }
+    }
+
+    /**
+     * Moves a finished file over the one it replaces in one step, or in two where the file system can't
+     * With a sync policy the directory is forced as well, so the new name survives a crash
+     *
+     * @param part
+     * @param target
+     * @return success/failure
+     */
+    public static boolean moveIntoPlace(File part, File target) {
+        try {
+            try {
+                Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (syncPolicy != SyncPolicy.NONE) {
+            try (FileChannel dir = FileChannel.open(target.getAbsoluteFile().getParentFile().toPath(),
+                    StandardOpenOption.READ)) {
+                dir.force(true);
+            } catch (IOException e) {
+                // not every platform lets a directory be opened, the file itself is on the disk already
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts receiving a file into the working directory, through the writer shared by the whole process
+     *
+     * @param fileName name of the file, it is stored as downloaded_fileName
+     * @return null if the file couldn't be created
+     */
+    public static Sink open(String fileName) {
+        return open(fileName, -1);
+    }
+
+    /**
+     * @param fileName name of the file, it is stored as downloaded_fileName
+     * @param size length the sender announced, the part file's length is set to it up front; -1 if unknown
+     * @return null if the file couldn't be created or the announced size can't be stored
+     */
+    public static Sink open(String fileName, long size) {
+        RXPStorageWriter writer = writer();
+        File dir = new File(System.getProperty("user.dir"));
+        // the size comes from the sender, don't set a part file to more than a transfer can carry or the disk holds
+        if (size > (long) Integer.MAX_VALUE * DATA_SIZE || size > dir.getUsableSpace()) {
+            System.out.printf("Refusing %s, %d bytes were announced and %d are free\n", fileName, size,
+                    dir.getUsableSpace());
+            return null;
+        }
+        try {
+            // every transfer gets its own part file, two clients may be sending the same name
+            File part = File.createTempFile(storedName(fileName) + ".", ".part", dir);
+            return writer.new Sink(part, new File(dir, storedName(fileName)), size);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Starts receiving into a channel of the caller's, which is left open
+     *
+     * @param out
+     * @return
+     */
+    public static Sink open(WritableByteChannel out) {
+        return writer().new Sink(out, null);
+    }
+
+    /**
+     * Starts receiving into a stream of the caller's, which is flushed at the end but left open
+     *
+     * @param out
+     * @return
+     */
+    public static Sink open(OutputStream out) {
+        return writer().new Sink(Channels.newChannel(out), out);
+    }
+
+    /**
+     * Starts receiving into a publisher, its subscriber gets the segments in order and completes
+     * once the file has passed the digest check
+     *
+     * @param publisher
+     * @return
+     */
+    public static Sink open(SubmissionPublisher<ByteBuffer> publisher) {
+        return writer().new Sink(publisher);
+    }
+
+    private static synchronized RXPStorageWriter writer() {
+        if (shared == null) {
+            shared = new RXPStorageWriter();
+            shared.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Used to thread, part of Thread, which was extended
+     */
+    @Override
+    public void run() {
+        while (true) {
+            Write write;
+            try {
+                write = queue.poll(POLL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (write == null) {
+                continue;
+            }
+            if (write.data == null) {
+                write.done.countDown();
+                continue;
+            }
+            if (write.sink.failed) {
+                continue;
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(write.data);
+                if (write.sink.stream != null) {
+                    while (buffer.hasRemaining()) {
+                        write.sink.stream.write(buffer);
+                    }
+                } else {
+                    write.sink.writeAt(buffer, write.offset);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                write.sink.failed = true;
+            }
+        }
+    }
+}
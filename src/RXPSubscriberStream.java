@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+
+/**
+ * Subscribes to a publisher of an upload and reads like a stream, so the RXPUploadSource can take it in
+ * The source only reads when the send window has room, and buffers are only requested as they are read,
+ * so a full window holds the publisher back
+ */
+public class RXPSubscriberStream extends InputStream implements Flow.Subscriber<ByteBuffer> {
+    private static final int PREFETCH = 16; // buffers asked for ahead of the reader
+
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    private Flow.Subscription subscription;
+    private int consumed = 0; // buffers read since more were requested
+    private boolean done = false;
+    private Throwable error;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (this.subscription != null) {
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+        }
+        subscription.request(PREFETCH);
+    }
+
+    @Override
+    public synchronized void onNext(ByteBuffer item) {
+        buffers.add(item);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        error = throwable;
+        done = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        done = true;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    /**
+     * Waits for the publisher when nothing is buffered
+     *
+     * @return bytes read, -1 once the publisher completed
+     * @throws IOException if the publisher failed
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Flow.Subscription more = null;
+        int n;
+        synchronized (this) {
+            while (buffers.isEmpty() && !done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (buffers.isEmpty()) {
+                if (error != null) {
+                    throw new IOException("Publisher failed", error);
+                }
+                return -1;
+            }
+            ByteBuffer head = buffers.peek();
+            n = Math.min(len, head.remaining());
+            head.get(b, off, n);
+            if (!head.hasRemaining()) {
+                buffers.poll();
+                if (++consumed >= PREFETCH / 2) {
+                    more = subscription;
+                }
+            }
+        }
+        if (more != null) {
+            // outside the lock, the publisher may deliver from within request
+            int requested;
+            synchronized (this) {
+                requested = consumed;
+                consumed = 0;
+            }
+            if (requested > 0) {
+                more.request(requested);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Cancels the subscription if the publisher hasn't finished
+     */
+    @Override
+    public void close() {
+        Flow.Subscription cancel;
+        synchronized (this) {
+            cancel = done ? null : subscription;
+            done = true;
+            buffers.clear();
+            notifyAll();
+        }
+        if (cancel != null) {
+            cancel.cancel();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session resumption ticket handed out by the server once a handshake completes
+ * A client holding a valid ticket can put it in its SYN together with its first GET/POST and skip the challenge
+ *
+ * Layout: server port (2), client port (2), expiry in ms (8), truncated HMAC-SHA256 of the first 12 bytes (16)
+ * The server keeps no state per ticket, it only needs its secret to check the MAC
+ */
+public class RXPTicket {
+    public static final int TICKET_LENGTH = 28;
+    private static final int MAC_OFFSET = 12;
+    private static final long LIFETIME = 10 * 60 * 1000; // 10 minutes
+
+    private final byte[] secret = new byte[32];
+
+    public RXPTicket() {
+        new SecureRandom().nextBytes(secret);
+    }
+
+    /**
+     * Issues a ticket for the client port that just completed the handshake
+     *
+     * @param serverPort
+     * @param clientPort
+     * @return ticket, or null if it could not be signed
+     */
+    public byte[] issue(int serverPort, int clientPort) {
+        ByteBuffer buffer = ByteBuffer.allocate(TICKET_LENGTH);
+        buffer.putShort((short) serverPort);
+        buffer.putShort((short) clientPort);
+        buffer.putLong(System.currentTimeMillis() + LIFETIME);
+        byte[] mac = mac(buffer.array());
+        if (mac == null) {
+            return null;
+        }
+        buffer.put(mac);
+        return buffer.array();
+    }
+
+    /**
+     * Checks that the ticket was issued by this server, for this client port, and has not expired
+     *
+     * @param ticket
+     * @param clientPort
+     * @return
+     */
+    public boolean verify(byte[] ticket, int clientPort) {
+        if (ticket == null || ticket.length < TICKET_LENGTH) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(ticket);
+        buffer.getShort();
+        int ticketPort = buffer.getShort() & 0xFFFF;
+        long expiry = buffer.getLong();
+        byte[] expected = mac(ticket);
+        byte[] actual = Arrays.copyOfRange(ticket, MAC_OFFSET, TICKET_LENGTH);
+
+        return expected != null && MessageDigest.isEqual(expected, actual) && ticketPort == clientPort
+                && System.currentTimeMillis() < expiry;
+    }
+
+    /**
+     * Server RXP port the ticket was issued by, so a resuming client knows where its session lives
+     *
+     * @param ticket
+     * @return
+     */
+    public static int serverPort(byte[] ticket) {
+        return ByteBuffer.wrap(ticket).getShort() & 0xFFFF;
+    }
+
+    private byte[] mac(byte[] ticket) {
+        try {
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            hmac.update(ticket, 0, MAC_OFFSET);
+            return Arrays.copyOf(hmac.doFinal(), TICKET_LENGTH - MAC_OFFSET);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
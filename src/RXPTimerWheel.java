@@ -0,0 +1,137 @@
+import java.util.ArrayList;
+
+/**
+ * Hierarchical timer wheel used for the per-connection keep-alive and idle timers
+ * Scheduling and cancelling a timer are O(1); timers far in the future sit on a coarser level
+ * and cascade down one level at a time as the wheel turns, so each timer is touched at most LEVELS times
+ *
+ * The wheel does not run on its own: whoever owns it calls advance() regularly and expired tasks run on that thread
+ */
+public class RXPTimerWheel {
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS; // 64 slots per level
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final long tickMillis;
+    private final Timer[][] wheel = new Timer[LEVELS][SLOTS];
+    private long currentTick;
+
+    /**
+     * A scheduled task, can be cancelled until it has run
+     */
+    public class Timer {
+        private final Runnable task;
+        private long deadline;
+        private Timer prev, next;
+
+        private Timer(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            synchronized (RXPTimerWheel.this) {
+                unlink(this);
+            }
+        }
+    }
+
+    /**
+     * @param tickMillis resolution of the wheel
+     */
+    public RXPTimerWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer head = new Timer(null, 0);
+                head.prev = head;
+                head.next = head;
+                wheel[level][slot] = head;
+            }
+        }
+    }
+
+    /**
+     * Runs the task once the delay has passed
+     *
+     * @param delayMillis
+     * @param task
+     * @return the timer, to cancel it
+     */
+    public synchronized Timer schedule(long delayMillis, Runnable task) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Timer timer = new Timer(task, currentTick + ticks);
+        insert(timer);
+        return timer;
+    }
+
+    /**
+     * Turns the wheel up to the current time and runs every task that expired on the way
+     */
+    public void advance() {
+        ArrayList<Runnable> expired = new ArrayList<>();
+        synchronized (this) {
+            long nowTick = System.currentTimeMillis() / tickMillis;
+            while (currentTick < nowTick) {
+                currentTick++;
+                cascade(1);
+                Timer head = wheel[0][(int) (currentTick & SLOT_MASK)];
+                while (head.next != head) {
+                    Timer timer = head.next;
+                    unlink(timer);
+                    expired.add(timer.task);
+                }
+            }
+        }
+        // tasks run outside the lock so they can schedule new timers
+        for (Runnable task : expired) {
+            task.run();
+        }
+    }
+
+    /**
+     * When a level wraps around, the due slot of the next level up is spread out over the level below
+     */
+    private void cascade(int level) {
+        if (level >= LEVELS || (currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+            return;
+        }
+        cascade(level + 1);
+        Timer head = wheel[level][(int) ((currentTick >> (SLOT_BITS * level)) & SLOT_MASK)];
+        while (head.next != head) {
+            Timer timer = head.next;
+            unlink(timer);
+            insert(timer);
+        }
+    }
+
+    private void insert(Timer timer) {
+        long delta = Math.max(0, timer.deadline - currentTick);
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        if (delta >= (1L << (SLOT_BITS * LEVELS))) {
+            timer.deadline = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1; // furthest the wheel reaches
+        }
+        long slotTick = Math.max(timer.deadline, currentTick);
+        Timer head = wheel[level][(int) ((slotTick >> (SLOT_BITS * level)) & SLOT_MASK)];
+
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.next == null) {
+            return; // already ran or was cancelled
+        }
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Decides which connection's data segment the dispatcher's socket sends next, by deficit round robin
+ * Every connection with segments waiting gets QUANTUM bytes times its weight per round, so a big download
+ * can't hold up a small one and a client with weight 2 gets twice the share of one with weight 1
+ *
+ * Connections hand over their segments through a short queue each and wait when it is full;
+ * the server-wide rate cap is applied here, after the choice is made
+ */
+public class RXPTransmitScheduler extends Thread {
+    private static final int QUANTUM = 512;
+    private static final int FLOW_QUEUE = 8;
+
+    private final DatagramSocket socket;
+    private final HashMap<Integer, Flow> flows = new HashMap<>();
+    private final ArrayDeque<Flow> active = new ArrayDeque<>();
+    private final HashMap<Integer, Integer> weights = new HashMap<>();
+    private volatile boolean running = true;
+
+    private static class Flow {
+        private final ArrayDeque<DatagramPacket> queue = new ArrayDeque<>();
+        private final int weight;
+        private int deficit = 0;
+        private boolean active = false;
+        private boolean visited = false; // got its quantum for the current turn
+
+        private Flow(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param socket socket the segments go out on
+     */
+    public RXPTransmitScheduler(DatagramSocket socket) {
+        super("rxp-scheduler");
+        this.socket = socket;
+        setDaemon(true);
+    }
+
+    /**
+     * Queues a segment of the connection, waiting while its queue is full
+     *
+     * @param clientPort RXP port of the connection
+     * @param packet
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void send(int clientPort, DatagramPacket packet) throws InterruptedIOException {
+        synchronized (this) {
+            Flow flow = flows.get(clientPort);
+            if (flow == null) {
+                Integer weight = weights.get(clientPort);
+                flow = new Flow(weight != null ? weight : 1);
+                flows.put(clientPort, flow);
+            }
+            try {
+                while (flow.queue.size() >= FLOW_QUEUE) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while queueing");
+            }
+            flow.queue.add(packet);
+            if (!flow.active) {
+                flow.active = true;
+                active.add(flow);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Forgets a connection that has ended, along with anything it still had queued
+     *
+     * @param clientPort
+     */
+    public synchronized void remove(int clientPort) {
+        Flow flow = flows.remove(clientPort);
+        if (flow != null) {
+            flow.queue.clear();
+            active.remove(flow);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @param clientPort RXP port of the client
+     * @param weight share of the client relative to the default of 1
+     */
+    public synchronized void setWeight(int clientPort, int weight) {
+        weights.put(clientPort, Math.max(1, weight));
+    }
+
+    public void terminate() {
+        running = false;
+        interrupt();
+    }
+
+    /**
+     * Used to thread, part of Thread, which was extended
+     */
+    @Override
+    public void run() {
+        while (running) {
+            DatagramPacket packet;
+            try {
+                packet = next();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            RXPPacer.paceGlobal(packet.getLength());
+            try {
+                socket.send(packet);
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Round robin over the connections with segments waiting; each turn adds the connection's quantum to its deficit
+     * and it sends while the deficit covers its next segment
+     */
+    private synchronized DatagramPacket next() throws InterruptedException {
+        while (true) {
+            while (active.isEmpty()) {
+                wait();
+            }
+            Flow flow = active.peek();
+            if (!flow.visited) {
+                flow.deficit += QUANTUM * flow.weight;
+                flow.visited = true;
+            }
+            DatagramPacket head = flow.queue.peek();
+            if (head.getLength() > flow.deficit) {
+                // turn is over, keep the rest of the deficit for the next one
+                active.poll();
+                flow.visited = false;
+                active.add(flow);
+                continue;
+            }
+            flow.queue.poll();
+            flow.deficit -= head.getLength();
+            if (flow.queue.isEmpty()) {
+                active.poll();
+                flow.active = false;
+                flow.visited = false;
+                flow.deficit = 0;
+            }
+            notifyAll(); // room in the queue
+            return head;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A directory tree sent as one transfer instead of a request per file
+ * The tree is walked as the transfer reads it, each directory in name order so the same tree always gives the
+ * same bytes and ranges can be fetched again. Every file is an entry: the length of its path relative to the top,
+ * the path in UTF-8 with / between the parts, its length and its contents; an entry with an empty path ends it
+ * Symbolic links are not followed, so the tree never leaves the directory it is sent from or loops back into itself
+ *
+ * While one file is being sent the next PREFETCH small ones are read on the prefetch threads, so a tree of many
+ * small files isn't held up by opening and reading them one after another. Bigger files are read as they go out
+ */
+public class RXPTree {
+    public static final String EXTENSION = ".rxptree";
+    private static final int MAGIC = 0x52585054;
+    private static final int PREFETCH = 8;
+    private static final long PREFETCH_MAX_SIZE = 256 * 1024;
+    private static final int COPY_SIZE = 64 * 1024;
+
+    private static ExecutorService prefetcher;
+
+    /**
+     * A file of the tree, read ahead if it's small
+     */
+    private static class Entry {
+        private final byte[] header;
+        private final Path path;
+        private final long size;
+        private final CompletableFuture<byte[]> contents;
+
+        private Entry(Path root, Path path) throws IOException {
+            byte[] name = root.relativize(path).toString().replace('\\', '/').getBytes(Charset.forName("UTF-8"));
+            this.path = path;
+            this.size = Files.size(path);
+            this.header = ByteBuffer.allocate(2 + name.length + 8).putShort((short) name.length).put(name).putLong(size)
+                    .array();
+            if (size <= PREFETCH_MAX_SIZE) {
+                this.contents = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return Files.readAllBytes(path);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, prefetcher());
+            } else {
+                this.contents = null;
+            }
+        }
+
+        /**
+         * the contents won't be read, a read ahead that hasn't started yet is skipped
+         */
+        private void cancel() {
+            if (contents != null) {
+                contents.cancel(false);
+            }
+        }
+
+        private InputStream open() throws IOException {
+            if (contents == null) {
+                return new BufferedInputStream(Files.newInputStream(path), COPY_SIZE);
+            }
+            try {
+                return new ByteArrayInputStream(contents.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause()
+                        : new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @param name name an upload was sent under
+     * @return whether it is a tree to unpack
+     */
+    public static boolean isTree(String name) {
+        return name.endsWith(EXTENSION);
+    }
+
+    /**
+     * @param treeName name of a tree upload
+     * @return name of the directory it is sent from
+     */
+    public static String directoryName(String treeName) {
+        return treeName.substring(0, treeName.length() - EXTENSION.length());
+    }
+
+    /**
+     * The tree below root, walked as it is read
+     * A file that gets shorter while it is sent fails the read, one that grows is cut at the length it was listed with
+     *
+     * @param root
+     * @return
+     * @throws IOException if root can't be listed
+     */
+    public static InputStream stream(Path root) throws IOException {
+        Iterator<Path> files = walk(root);
+        return new InputStream() {
+            private final ArrayDeque<Entry> ahead = new ArrayDeque<>();
+            private InputStream current = new ByteArrayInputStream(ByteBuffer.allocate(4).putInt(MAGIC).array());
+            private Entry contentsNext; // entry whose header went out last, its contents come next
+            private long left = -1; // bytes of the file being read still to come, -1 while it's a header
+            private boolean ended = false;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (true) {
+                    int n = left == 0 ? -1 : current.read(b, off, left > 0 ? (int) Math.min(len, left) : len);
+                    if (n > 0) {
+                        if (left > 0) {
+                            left -= n;
+                        }
+                        return n;
+                    }
+                    current.close();
+                    if (left > 0) {
+                        throw new IOException("A file got shorter while it was sent");
+                    }
+                    if (!next()) {
+                        return -1;
+                    }
+                }
+            }
+
+            /**
+             * closes the file being read and drops the ones read ahead, the rest of the tree is not walked
+             */
+            @Override
+            public void close() throws IOException {
+                ended = true;
+                contentsNext = null;
+                for (Entry entry : ahead) {
+                    entry.cancel();
+                }
+                ahead.clear();
+                current.close();
+            }
+
+            /**
+             * moves on to the contents of the entry whose header went out, or to the next header
+             */
+            private boolean next() throws IOException {
+                if (contentsNext != null) {
+                    current = contentsNext.open();
+                    left = contentsNext.size;
+                    contentsNext = null;
+                    return true;
+                }
+                if (ended) {
+                    return false;
+                }
+                try {
+                    while (ahead.size() <= PREFETCH && files.hasNext()) {
+                        ahead.add(new Entry(root, files.next()));
+                    }
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                contentsNext = ahead.poll();
+                left = -1;
+                if (contentsNext == null) {
+                    ended = true;
+                    current = new ByteArrayInputStream(new byte[2]); // empty path
+                } else {
+                    current = new ByteArrayInputStream(contentsNext.header);
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Reads a tree off a stream and writes its files below dir, which is created if needed
+     * A path that would leave dir is refused
+     *
+     * @param in
+     * @param dir
+     * @return number of files written, -1 if the tree is damaged
+     */
+    public static int unpack(InputStream in, Path dir) {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, COPY_SIZE));
+        int count = 0;
+        try {
+            if (data.readInt() != MAGIC) {
+                System.out.println("Not a directory tree");
+                return -1;
+            }
+            Files.createDirectories(dir);
+            Path top = dir.toAbsolutePath().normalize();
+            byte[] buffer = new byte[COPY_SIZE];
+            while (true) {
+                byte[] name = new byte[data.readUnsignedShort()];
+                if (name.length == 0) {
+                    break;
+                }
+                data.readFully(name);
+                long size = data.readLong();
+                Path target = top.resolve(RXPHelpers.byteArrToStr(name)).normalize();
+                if (!target.startsWith(top) || target.equals(top) || size < 0) {
+                    System.out.println("Refusing " + RXPHelpers.byteArrToStr(name));
+                    return -1;
+                }
+                Files.createDirectories(target.getParent());
+                try (OutputStream out = Files.newOutputStream(target)) {
+                    while (size > 0) {
+                        int n = data.read(buffer, 0, (int) Math.min(buffer.length, size));
+                        if (n < 0) {
+                            throw new EOFException();
+                        }
+                        out.write(buffer, 0, n);
+                        size -= n;
+                    }
+                }
+                count++;
+            }
+            System.out.printf("Unpacked %d files into %s\n", count, dir);
+            return count;
+        } catch (EOFException e) {
+            System.out.println("Directory tree ends early");
+            return -1;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Unpacks a tree that was received into a file, which is removed afterwards
+     *
+     * @param tree
+     * @param dir
+     * @return number of files written, -1 if the tree is damaged
+     */
+    public static int unpack(File tree, Path dir) {
+        try (InputStream in = Files.newInputStream(tree.toPath())) {
+            return unpack(in, dir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            tree.delete();
+        }
+    }
+
+    /**
+     * regular files below root, depth first and in name order, listed only as the walk gets to each directory
+     * Symbolic links are skipped, root included
+     */
+    private static Iterator<Path> walk(Path root) throws IOException {
+        if (!Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(root + " is not a directory");
+        }
+        ArrayDeque<Iterator<Path>> stack = new ArrayDeque<>();
+        stack.push(list(root));
+        return new Iterator<Path>() {
+            private Path next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && !stack.isEmpty()) {
+                    Iterator<Path> top = stack.peek();
+                    if (!top.hasNext()) {
+                        stack.pop();
+                        continue;
+                    }
+                    Path path = top.next();
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        try {
+                            stack.push(list(path));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    } else if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                        next = path;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Path next() {
+                hasNext();
+                Path path = next;
+                next = null;
+                return path;
+            }
+        };
+    }
+
+    private static Iterator<Path> list(Path dir) throws IOException {
+        try (Stream<Path> entries = Files.list(dir)) {
+            return entries.sorted().collect(Collectors.toList()).iterator();
+        }
+    }
+
+    private static synchronized ExecutorService prefetcher() {
+        if (prefetcher == null) {
+            prefetcher = Executors.newFixedThreadPool(4, runnable -> {
+                Thread thread = new Thread(runnable, "rxp-tree-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return prefetcher;
+    }
+}
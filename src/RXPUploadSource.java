@@ -0,0 +1,240 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Where the segments of an upload come from: a file already in memory, a file on disk or a stream of unknown length
+ * A file on disk is read a segment at a time as it is sent, so it never has to fit in the heap. A stream is read
+ * as the send window moves along and only the segments that haven't been acknowledged are kept. Both are hashed as
+ * the segments first go out, in order, and the trailer is worked out at the end since it goes last anyway; a file
+ * on disk asked for its trailer before all of it went out in order, as by a ranged GET, is read through for it
+ *
+ * Only an upload from memory or from disk can send ranges again when the server's digest check fails
+ */
+public class RXPUploadSource implements Closeable {
+    private static final int DATA_SIZE = 496;
+
+    private final byte[] file;
+    private final FileChannel channel;
+    private final InputStream in;
+    private final HashMap<Integer, byte[]> held = new HashMap<>();
+    private final RXPDigest digest = new RXPDigest();
+    private int read = 0; // segments taken off the stream so far
+    private int hashed = 0; // segments of the file on disk in the digest so far
+    private int total = -1; // data segments, -1 until the stream has ended
+    private long length = 0;
+    private byte[] trailer;
+
+    /**
+     * @param file contents of the file
+     */
+    public RXPUploadSource(byte[] file) {
+        this.file = file;
+        this.channel = null;
+        this.in = null;
+        this.total = RXPHelpers.getSegmentCount(file.length);
+        this.length = file.length;
+        try {
+            this.trailer = RXPDigest.of(total, i -> segment(file, i)).trailer();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // the file is in memory, reading it doesn't fail
+        }
+    }
+
+    /**
+     * @param path file read as it is sent, kept open until close
+     * @throws IOException if the file can't be opened or read, or has more segments than a transfer can carry
+     */
+    public RXPUploadSource(Path path) throws IOException {
+        this.file = null;
+        this.in = null;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.length = channel.size();
+            long segments = (length + DATA_SIZE - 1) / DATA_SIZE;
+            if (segments >= Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to send");
+            }
+            this.total = (int) segments;
+            if (total == 0) {
+                trailer = digest.trailer();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param in read up to its end, closed by close
+     */
+    public RXPUploadSource(InputStream in) {
+        this.file = null;
+        this.channel = null;
+        this.in = in;
+    }
+
+    /**
+     * @param index segment of the file
+     * @return its data, null if the file ends before it or the index is negative
+     * @throws IOException if the stream couldn't be read
+     */
+    public byte[] segment(int index) throws IOException {
+        if (index < 0) {
+            return null;
+        }
+        if (file != null) {
+            return index < total ? segment(file, index) : null;
+        }
+        if (channel != null) {
+            if (index >= total) {
+                return null;
+            }
+            byte[] data = read(index);
+            hash(index, data);
+            return data;
+        }
+        while (total < 0 && read <= index) {
+            readSegment();
+        }
+        return held.get(index);
+    }
+
+    /**
+     * Segments before index are acknowledged and won't be asked for again
+     *
+     * @param index
+     */
+    public void release(int index) {
+        if (in != null) {
+            held.keySet().removeIf(i -> i < index);
+        }
+    }
+
+    /**
+     * @return number of data segments, -1 while a stream hasn't ended yet
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return bytes in the file, or read off the stream so far
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the digest trailer, only known once the source has ended
+     * @throws IOException if a file on disk had to be read for it and couldn't be
+     */
+    public byte[] getTrailer() throws IOException {
+        if (channel != null) {
+            synchronized (digest) {
+                if (trailer == null) {
+                    trailer = RXPDigest.of(total, this::read).trailer();
+                }
+            }
+        }
+        return trailer;
+    }
+
+    /**
+     * @return whether segments can be sent again after they were acknowledged
+     */
+    public boolean canRepair() {
+        return in == null;
+    }
+
+    /**
+     * Closes the file or stream the segments come from
+     */
+    @Override
+    public void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            } else if (in != null) {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * reads one segment's worth off the stream, a short read only ends the segment at the end of the stream
+     */
+    private void readSegment() throws IOException {
+        byte[] buffer = new byte[DATA_SIZE];
+        int filled = 0;
+        while (filled < DATA_SIZE) {
+            int n = in.read(buffer, filled, DATA_SIZE - filled);
+            if (n < 0) {
+                break;
+            }
+            filled += n;
+        }
+        if (filled == 0) {
+            end(read);
+            return;
+        }
+        byte[] data = filled == DATA_SIZE ? buffer : Arrays.copyOf(buffer, filled);
+        held.put(read, data);
+        digest.update(read, data);
+        length += filled;
+        read++;
+        if (filled < DATA_SIZE) {
+            end(read);
+        }
+    }
+
+    /**
+     * adds a segment of the file on disk to the digest the first time the segments go out in order,
+     * the segments may be read on several threads
+     */
+    private void hash(int index, byte[] data) {
+        synchronized (digest) {
+            if (trailer == null && index == hashed) {
+                digest.update(index, data);
+                if (++hashed == total) {
+                    trailer = digest.trailer();
+                }
+            }
+        }
+    }
+
+    private void end(int segments) {
+        total = segments;
+        trailer = digest.trailer();
+    }
+
+    /**
+     * reads a segment of the file on disk, positional reads so blocks can be read on several threads
+     */
+    private byte[] read(int index) throws IOException {
+        long position = (long) index * DATA_SIZE;
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(DATA_SIZE, length - position));
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) {
+                throw new IOException("The file got shorter while it was sent");
+            }
+        }
+        return data.array();
+    }
+
+    private static byte[] segment(byte[] file, int index) {
+        int byteLocation = index * DATA_SIZE;
+        int dataLength = Math.min(DATA_SIZE, file.length - byteLocation);
+        byte[] data = new byte[dataLength];
+        System.arraycopy(file, byteLocation, data, 0, dataLength);
+        return data;
+    }
+}